@@ -0,0 +1,32 @@
+setlocal
+
+pushd %~dp0
+
+set CLASSES=classes
+set DIST=dist
+set INPUT=test\input
+
+javac @build || goto :end
+
+rmdir /s /q %DIST%
+if EXIST %DIST% (
+    echo %DIST% folder still exists.
+    goto :end
+)
+mkdir %DIST%
+
+rem AppCDS only archives classes loaded from jars, so package the classes
+rem first, then dump whatever test\input makes the JVM load
+jar --create --file %DIST%\test.jar --main-class Test -C %CLASSES% . || goto :end
+java -XX:ArchiveClassesAtExit=%DIST%\test.jsa -cp %DIST%\test.jar Train %INPUT% %DIST%\cache || goto :end
+rmdir /s /q %DIST%\cache
+
+rem check the archived launcher against the expected outputs; -Xshare:on
+rem fails instead of silently running without the archive
+set TEST=java -Dinterp.parallel.minChunkLines=1 -Xshare:on -XX:SharedArchiveFile=%~dp0%DIST%\test.jsa -cp %~dp0%DIST%\test.jar Test
+call test\test.bat
+
+:end
+popd
+
+endlocal
@@ -0,0 +1,360 @@
+public class Bench
+{
+    public static void main(String[] args)
+        throws Exception
+    {
+        int a = 0;
+        var startup = false;
+        var dedup = false;
+        var threads = false;
+        var batch = false;
+        if (a < args.length && args[a].equals("-startup"))
+        {
+            startup = true;
+            a++;
+        }
+        else if (a < args.length && args[a].equals("-dedup"))
+        {
+            dedup = true;
+            a++;
+        }
+        else if (a < args.length && args[a].equals("-threads"))
+        {
+            threads = true;
+            a++;
+        }
+        else if (a < args.length && args[a].equals("-batch"))
+        {
+            batch = true;
+            a++;
+        }
+
+        var runs = startup ? 20 : 200;
+        if (a + 1 < args.length && args[a].equals("-n"))
+        {
+            runs = Integer.parseInt(args[a + 1]);
+            a += 2;
+        }
+
+        if (a == args.length)
+        {
+            System.err.format("Usage: java %s [-startup | -dedup | -threads | -batch] [-n <runs>] <source_file>...%n", Bench.class.getName());
+            System.exit(-1);
+        }
+
+        if (startup)
+        {
+            startup(java.util.Arrays.copyOfRange(args, a, args.length), runs);
+            return;
+        }
+        if (dedup)
+        {
+            dedup(java.util.Arrays.copyOfRange(args, a, args.length));
+            return;
+        }
+        if (threads)
+        {
+            threads(java.util.Arrays.copyOfRange(args, a, args.length), runs);
+            return;
+        }
+        if (batch)
+        {
+            batch(java.util.Arrays.copyOfRange(args, a, args.length), runs);
+            return;
+        }
+
+        // Vm compiles a program once, so its runs are timed apart from that
+        System.out.format("%-24s", "engines (us/run)");
+        for (var engine : Test.Engine.values())
+            System.out.format("%12s", engine);
+        System.out.format("%12s%n", "Vm compile");
+
+        for (; a < args.length; a++)
+        {
+            var root = Test.compile(args[a]);
+
+            System.out.format("%-24s", new java.io.File(args[a]).getName());
+            for (var engine : Test.Engine.values())
+                System.out.format("%12.1f", time(root, engine, runs) / 1e3);
+            System.out.format("%12.1f%n", compileTime(root, runs) / 1e3);
+        }
+    }
+
+    // one process per run, as test\test.bat does, for each of the launchers
+    // that has been built; run from the top directory
+    private static void startup(String[] files, int runs)
+        throws Exception
+    {
+        var jvm = ProcessHandle.current().info().command().orElse("java");
+        var launchers = new java.util.LinkedHashMap<String, java.util.List<String>>();
+        launchers.put("java", java.util.List.of(jvm, "-cp", "classes", "Test"));
+        if (new java.io.File("dist/test.jsa").exists())
+            launchers.put("java+cds", java.util.List.of(
+                        jvm, "-XX:SharedArchiveFile=dist/test.jsa", "-cp", "dist/test.jar", "Test"));
+
+        System.out.format("%-24s", "first result (ms)");
+        for (var name : launchers.keySet())
+            System.out.format("%12s", name);
+        System.out.println();
+
+        for (var file : files)
+        {
+            System.out.format("%-24s", new java.io.File(file).getName());
+            String expected = null;
+            for (var cmd : launchers.values())
+            {
+                var total = 0L;
+                String first = null;
+                for (int i = 0; i < runs; i++)
+                {
+                    var args = new java.util.ArrayList<String>(cmd);
+                    args.add(file);
+                    var t0 = System.nanoTime();
+                    var p = new ProcessBuilder(args).redirectErrorStream(true).start();
+                    try (var in = new java.io.BufferedReader(new java.io.InputStreamReader(p.getInputStream())))
+                    {
+                        first = in.readLine();
+                        total += System.nanoTime() - t0;
+                        while (in.readLine() != null)
+                            ;
+                    }
+                    p.waitFor();
+                }
+
+                // a stale archive shows up as a warning instead of the result
+                if (expected == null)
+                    expected = first;
+                if (java.util.Objects.equals(first, expected))
+                    System.out.format("%12.1f", (double)total / runs / 1e6);
+                else
+                    System.out.format("%12s", "differs");
+            }
+            System.out.println();
+        }
+    }
+
+    // the AST of the main module as a tree, its distinct nodes after Inliner
+    // and after Cse, and the nodes the tree engine evaluates without and with
+    // Cse; imports are not followed
+    private static void dedup(String[] files)
+        throws Exception
+    {
+        System.out.format("%-24s%10s%10s%10s%8s%8s%12s%12s%n",
+                "", "tree", "inlined", "cse", "ratio", "shared", "evaluated", "with cse");
+        for (var file : files)
+        {
+            Expr linked;
+            try
+            {
+                var parser = new Parser(file);
+                var bindings = new Inliner().inlineModule(parser.parseBindings(0), java.util.Map.of(), true);
+                linked = new LetrecExpr(new VarExpr("root", parser.srcLoc()), bindings);
+            }
+            catch (ParseException ex)
+            {
+                System.out.format("%-24s%s%n", new java.io.File(file).getName(), ex);
+                continue;
+            }
+            var cse = new Cse();
+            var root = cse.rewrite(linked);
+            var before = Cse.count(linked);
+            var after = Cse.count(root);
+
+            System.out.format("%-24s%10d%10d%10d%8.2f%8d%12d%12d%n",
+                    new java.io.File(file).getName(),
+                    before[0],
+                    before[1],
+                    after[1],
+                    (double)after[1] / before[0],
+                    cse.shared(),
+                    evaluated(linked),
+                    evaluated(root));
+        }
+    }
+
+    private static long evaluated(Expr root)
+    {
+        var enabled = Metrics.s_enabled;
+        Metrics.s_enabled = true;
+        Metrics.reset();
+        try
+        {
+            Test.evaluate(root, Test.Engine.Tree);
+        }
+        catch (EvalException ex)
+        {
+        }
+        finally
+        {
+            Metrics.s_enabled = enabled;
+        }
+        return Metrics.s_nodes.sum();
+    }
+
+    // evaluations per second of the programs taken in turn, as a service
+    // handling a mix of valid and invalid programs would; those that do not
+    // parse are left out
+    private static void batch(String[] files, int runs)
+        throws Exception
+    {
+        var roots = new java.util.ArrayList<Expr>();
+        for (var file : files)
+        {
+            try
+            {
+                roots.add(Test.compile(file));
+            }
+            catch (ParseException ex)
+            {
+            }
+        }
+
+        System.out.format("%-24s", "batch (runs/s)");
+        for (var engine : Test.Engine.values())
+            System.out.format("%12s", engine);
+        System.out.println();
+
+        var failing = 0;
+        for (var root : roots)
+        {
+            try
+            {
+                Test.run(root, Test.Engine.Tree);
+            }
+            catch (EvalException ex)
+            {
+                failing++;
+            }
+        }
+        System.out.format("%-24s", String.format("%d of %d failing", failing, roots.size()));
+
+        for (var engine : Test.Engine.values())
+        {
+            for (int i = 0; i < runs; i++)
+                runAll(roots, engine);
+
+            var t0 = System.nanoTime();
+            for (int i = 0; i < runs; i++)
+                runAll(roots, engine);
+            System.out.format("%12.0f", (double)runs * roots.size() / (System.nanoTime() - t0) * 1e9);
+        }
+        System.out.println();
+    }
+
+    private static void runAll(java.util.List<Expr> roots, Test.Engine engine)
+    {
+        for (var root : roots)
+        {
+            try
+            {
+                Test.run(root, engine);
+            }
+            catch (EvalException ex)
+            {
+            }
+        }
+    }
+
+    // evaluations per second of one Program shared by 1, 2, 4, ... threads,
+    // up to the number of processors, and the best of them over the first
+    private static void threads(String[] files, int runs)
+        throws Exception
+    {
+        var counts = new java.util.ArrayList<Integer>();
+        var cpus = Runtime.getRuntime().availableProcessors();
+        for (int n = 1; n < cpus; n *= 2)
+            counts.add(n);
+        counts.add(cpus);
+
+        System.out.format("%-24s", "runs/s by threads");
+        for (var n : counts)
+            System.out.format("%12d", n);
+        System.out.format("%10s%n", "scaling");
+
+        for (var file : files)
+        {
+            var program = Program.compile(new String(
+                        java.nio.file.Files.readAllBytes(java.nio.file.Paths.get(file))));
+
+            System.out.format("%-24s", new java.io.File(file).getName());
+            var first = 0.0;
+            var best = 0.0;
+            for (var n : counts)
+            {
+                var perSecond = throughput(program, n, runs);
+                if (first == 0)
+                    first = perSecond;
+                best = Math.max(best, perSecond);
+                System.out.format("%12.0f", perSecond);
+            }
+            System.out.format("%10.2f%n", best / first);
+        }
+    }
+
+    // each thread evaluates program runs times, after as many warm-up runs;
+    // failed evaluations count as runs
+    private static double throughput(Program program, int threads, int runs)
+        throws Exception
+    {
+        var tasks = new java.util.ArrayList<java.util.concurrent.Callable<Void>>();
+        for (int t = 0; t < threads; t++)
+        {
+            tasks.add(() ->
+            {
+                for (int i = 0; i < runs; i++)
+                {
+                    try
+                    {
+                        program.evaluate();
+                    }
+                    catch (Program.Failure ex)
+                    {
+                    }
+                }
+                return null;
+            });
+        }
+
+        var pool = java.util.concurrent.Executors.newFixedThreadPool(threads);
+        try
+        {
+            for (var f : pool.invokeAll(tasks))
+                f.get();
+
+            var t0 = System.nanoTime();
+            for (var f : pool.invokeAll(tasks))
+                f.get();
+            return (double)threads * runs / (System.nanoTime() - t0) * 1e9;
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+    }
+
+    // mean nanoseconds per compilation of root for Vm, after as many
+    // warm-up compilations
+    private static double compileTime(Expr root, int runs)
+    {
+        for (int i = 0; i < runs; i++)
+            new Vm(root);
+
+        var t0 = System.nanoTime();
+        for (int i = 0; i < runs; i++)
+            new Vm(root);
+        return (double)(System.nanoTime() - t0) / runs;
+    }
+
+    // mean nanoseconds per run, after as many warm-up runs
+    private static double time(Expr root, Test.Engine engine, int runs)
+        throws EvalException
+    {
+        for (int i = 0; i < runs; i++)
+            Test.run(root, engine);
+
+        var t0 = System.nanoTime();
+        for (int i = 0; i < runs; i++)
+            Test.run(root, engine);
+        return (double)(System.nanoTime() - t0) / runs;
+    }
+}
@@ -0,0 +1,542 @@
+// Alternative engine: lambda lifting turns every lambda into a top-level
+// supercombinator, whose body is a template instantiated into a graph
+// on each saturated call. Graph nodes are updated in place with their
+// value once reduced, so letrec bindings and other shared subgraphs are
+// evaluated at most once.
+//
+// As in the tree interpreter, application is strict in both sides and
+// only letrec bindings are lazy.
+class GraphReducer
+{
+    public GraphReducer(Expr root)
+    {
+        m_main = new Lifter().lift(root);
+    }
+
+    public Value run()
+        throws EvalException
+    {
+        return eval(instantiate(m_main.m_body, new GNode[m_main.m_nslots]));
+    }
+
+    static Value eval(GNode n)
+        throws EvalException
+    {
+        if (n.m_val == null)
+            n.m_val = n.reduce();
+        return n.m_val;
+    }
+
+    static GNode instantiate(GTemplate t, GNode[] frame)
+    {
+        if (t instanceof GTemplate.Slot)
+            return frame[((GTemplate.Slot)t).m_slot];
+        else if (t instanceof GTemplate.Const)
+            return ((GTemplate.Const)t).m_node;
+        else if (t instanceof GTemplate.App)
+        {
+            var a = (GTemplate.App)t;
+            return new GNode.App(
+                    instantiate(a.m_fn, frame),
+                    instantiate(a.m_arg, frame),
+                    a.m_expr);
+        }
+        else if (t instanceof GTemplate.Cond)
+        {
+            var c = (GTemplate.Cond)t;
+            return new GNode.Cond(instantiate(c.m_cond, frame), c, frame);
+        }
+        else if (t instanceof GTemplate.Letrec)
+        {
+            // bindings may refer to each other: allocate the indirections
+            // first, then point them at the instantiated bindings
+            var l = (GTemplate.Letrec)t;
+            for (var slot : l.m_slots)
+                frame[slot] = new GNode.Ind();
+            for (int i = 0; i < l.m_slots.length; i++)
+                ((GNode.Ind)frame[l.m_slots[i]]).m_target =
+                    instantiate(l.m_bindings[i], frame);
+            return instantiate(l.m_body, frame);
+        }
+        else if (t instanceof GTemplate.Pap)
+        {
+            var p = (GTemplate.Pap)t;
+            var args = new GNode[p.m_slots.length];
+            for (int i = 0; i < args.length; i++)
+                args[i] = frame[p.m_slots[i]];
+            return new GNode.Val(new PapValue(p.m_sc, args));
+        }
+        else if (t instanceof GTemplate.Unbound)
+            return new GNode.Unbound(((GTemplate.Unbound)t).m_expr);
+        else
+            throw new RuntimeException("unknown template (should not happen)");
+    }
+
+    private final Supercomb m_main;
+}
+
+class Supercomb
+{
+    Supercomb(String name, java.util.List<VarExpr> params)
+    {
+        m_name = name;
+        m_params = params;
+    }
+
+    public String toString()
+    {
+        return m_name;
+    }
+
+    final String m_name;
+    final java.util.List<VarExpr> m_params;  // free variables first
+    GTemplate m_body;
+    int m_nslots;
+}
+
+// a supercombinator applied to fewer arguments than its arity
+class PapValue implements Value
+{
+    PapValue(Supercomb sc, GNode[] args)
+    {
+        m_sc = sc;
+        m_args = args;
+    }
+
+    public String toString()
+    {
+        return String.format("\\%s.<...>", m_sc.m_params.get(m_args.length).name());
+    }
+
+    public boolean left() { return false; }
+
+    public Value apply(Value v)
+        throws EvalException
+    {
+        var n = m_args.length;
+        if (n + 1 < m_sc.m_params.size())
+        {
+            var args = java.util.Arrays.copyOf(m_args, n + 1);
+            args[n] = new GNode.Val(v);
+            return new PapValue(m_sc, args);
+        }
+
+        var frame = java.util.Arrays.copyOf(m_args, m_sc.m_nslots);
+        frame[n] = new GNode.Val(v);
+        return GraphReducer.eval(GraphReducer.instantiate(m_sc.m_body, frame));
+    }
+
+    private final Supercomb m_sc;
+    private final GNode[] m_args;
+}
+
+abstract class GNode
+{
+    // m_val is set once the node has been reduced
+    Value m_val;
+
+    abstract Value reduce()
+        throws EvalException;
+
+    static class Val extends GNode
+    {
+        Val(Value val)
+        {
+            m_val = val;
+        }
+
+        Value reduce()
+        {
+            return m_val;
+        }
+    }
+
+    static class App extends GNode
+    {
+        App(GNode fn, GNode arg, Expr expr)
+        {
+            m_fn = fn;
+            m_arg = arg;
+            m_expr = expr;
+        }
+
+        Value reduce()
+            throws EvalException
+        {
+            var v1 = GraphReducer.eval(m_fn);
+            var v2 = GraphReducer.eval(m_arg);
+            try
+            {
+                var val = AppExpr.apply(v1, v2);
+                m_fn = null;
+                m_arg = null;
+                return val;
+            }
+            catch (EvalException ex)
+            {
+                ex.appendExprStack(m_expr);
+                throw ex;
+            }
+        }
+
+        private GNode m_fn;
+        private GNode m_arg;
+        private final Expr m_expr;
+    }
+
+    static class Cond extends GNode
+    {
+        Cond(GNode cond, GTemplate.Cond t, GNode[] frame)
+        {
+            m_cond = cond;
+            m_t = t;
+            m_frame = frame;
+        }
+
+        // the chosen branch is only instantiated once the condition is known
+        Value reduce()
+            throws EvalException
+        {
+            var cond = GraphReducer.eval(m_cond);
+            if (! (cond instanceof BooleanValue))
+                throw new EvalException(m_t.m_expr, "condition not boolean: %s", cond);
+
+            var branch = ((BooleanValue)cond).val() ? m_t.m_then : m_t.m_else;
+            var val = GraphReducer.eval(GraphReducer.instantiate(branch, m_frame));
+
+            m_cond = null;
+            m_frame = null;
+            return val;
+        }
+
+        private GNode m_cond;
+        private final GTemplate.Cond m_t;
+        private GNode[] m_frame;
+    }
+
+    static class Ind extends GNode
+    {
+        Value reduce()
+            throws EvalException
+        {
+            var val = GraphReducer.eval(m_target);
+            m_target = null;
+            return val;
+        }
+
+        GNode m_target;
+    }
+
+    static class Unbound extends GNode
+    {
+        Unbound(VarExpr expr)
+        {
+            m_expr = expr;
+        }
+
+        Value reduce()
+            throws EvalException
+        {
+            throw new EvalException(m_expr, "unbound var: %s", m_expr.name());
+        }
+
+        private final VarExpr m_expr;
+    }
+}
+
+// supercombinator bodies; variables are slots in the call frame
+abstract class GTemplate
+{
+    static class Slot extends GTemplate
+    {
+        Slot(int slot)
+        {
+            m_slot = slot;
+        }
+
+        final int m_slot;
+    }
+
+    static class Const extends GTemplate
+    {
+        Const(Value val)
+        {
+            m_node = new GNode.Val(val);
+        }
+
+        final GNode m_node;
+    }
+
+    static class App extends GTemplate
+    {
+        App(GTemplate fn, GTemplate arg, Expr expr)
+        {
+            m_fn = fn;
+            m_arg = arg;
+            m_expr = expr;
+        }
+
+        final GTemplate m_fn;
+        final GTemplate m_arg;
+        final Expr m_expr;
+    }
+
+    static class Cond extends GTemplate
+    {
+        Cond(GTemplate cond, GTemplate then, GTemplate els, Expr expr)
+        {
+            m_cond = cond;
+            m_then = then;
+            m_else = els;
+            m_expr = expr;
+        }
+
+        final GTemplate m_cond;
+        final GTemplate m_then;
+        final GTemplate m_else;
+        final Expr m_expr;
+    }
+
+    static class Letrec extends GTemplate
+    {
+        Letrec(int[] slots, GTemplate[] bindings, GTemplate body)
+        {
+            m_slots = slots;
+            m_bindings = bindings;
+            m_body = body;
+        }
+
+        final int[] m_slots;
+        final GTemplate[] m_bindings;
+        final GTemplate m_body;
+    }
+
+    // a lifted lambda: its supercombinator applied to the free variables
+    static class Pap extends GTemplate
+    {
+        Pap(Supercomb sc, int[] slots)
+        {
+            m_sc = sc;
+            m_slots = slots;
+        }
+
+        final Supercomb m_sc;
+        final int[] m_slots;
+    }
+
+    static class Unbound extends GTemplate
+    {
+        Unbound(VarExpr expr)
+        {
+            m_expr = expr;
+        }
+
+        final VarExpr m_expr;
+    }
+}
+
+class Lifter
+{
+    // returns the arity 0 supercombinator for the program
+    public Supercomb lift(Expr root)
+    {
+        return liftBody("$main", new java.util.ArrayList<VarExpr>(), root);
+    }
+
+    public java.util.List<Supercomb> supercombs()
+    {
+        return m_supercombs;
+    }
+
+    private Supercomb liftBody(String name, java.util.List<VarExpr> params, Expr body)
+    {
+        var sc = new Supercomb(name, params);
+        m_supercombs.add(sc);
+
+        var outer = m_frame;
+        m_frame = new Frame();
+
+        var scope = new Scope(null);
+        for (var p : params)
+            scope.m_names.put(p.name(), m_frame.newSlot());
+        sc.m_body = lift(body, scope);
+        sc.m_nslots = m_frame.m_nslots;
+
+        m_frame = outer;
+        return sc;
+    }
+
+    private GTemplate lift(Expr e, Scope scope)
+    {
+        if (e instanceof VarExpr)
+        {
+            var v = (VarExpr)e;
+            var slot = resolve(v.name(), scope);
+            if (slot != null)
+                return new GTemplate.Slot(slot);
+
+            var val = literal(v.name());
+            if (val == null)
+                return new GTemplate.Unbound(v);
+
+            var k = m_consts.get(v.name());
+            if (k == null)
+            {
+                k = new GTemplate.Const(val);
+                m_consts.put(v.name(), k);
+            }
+            return k;
+        }
+        else if (e instanceof AppExpr)
+        {
+            var a = (AppExpr)e;
+            return new GTemplate.App(lift(a.e1(), scope), lift(a.e2(), scope), a);
+        }
+        else if (e instanceof BinaryOpExpr)
+        {
+            // reduced as the two applications it came from
+            var b = (BinaryOpExpr)e;
+            return new GTemplate.App(lift(b.inner(), scope), lift(b.rhs(), scope), b);
+        }
+        else if (e instanceof CondExpr)
+        {
+            var c = (CondExpr)e;
+            return new GTemplate.Cond(
+                    lift(c.ec(), scope),
+                    lift(c.et(), scope),
+                    lift(c.ef(), scope),
+                    c);
+        }
+        else if (e instanceof LambdaExpr)
+        {
+            var params = new java.util.ArrayList<VarExpr>();
+            Expr body = e;
+            while (body instanceof LambdaExpr)
+            {
+                params.add(((LambdaExpr)body).var());
+                body = ((LambdaExpr)body).expr();
+            }
+            return liftLambda(params, body, e, scope);
+        }
+        else if (e instanceof LetrecExpr)
+        {
+            var l = (LetrecExpr)e;
+            var scope1 = new Scope(scope);
+            var names = new java.util.ArrayList<String>(l.bindings().keySet());
+            var slots = new int[names.size()];
+            for (int i = 0; i < slots.length; i++)
+            {
+                slots[i] = m_frame.newSlot();
+                scope1.m_names.put(names.get(i), slots[i]);
+            }
+
+            var bindings = new GTemplate[slots.length];
+            for (int i = 0; i < slots.length; i++)
+                bindings[i] = lift(l.bindings().get(names.get(i)), scope1);
+
+            return new GTemplate.Letrec(slots, bindings, lift(l.expr(), scope1));
+        }
+        else if (e instanceof CallExpr)
+            return lift(((CallExpr)e).app(), scope);
+        else if (e instanceof MemoExpr)
+            return lift(((MemoExpr)e).body(), scope);
+        else if (e instanceof SharedExpr)
+            return lift(((SharedExpr)e).expr(), scope);
+        else if (e instanceof InlinedAppExpr)
+        {
+            // (\params.body) args, applied one argument at a time
+            var call = (InlinedAppExpr)e;
+            GTemplate t = liftLambda(call.params(), call.body(), e, scope);
+            for (var arg : call.args())
+                t = new GTemplate.App(t, lift(arg, scope), call);
+            return t;
+        }
+        else
+            throw new RuntimeException(
+                    String.format("cannot lift %s (should not happen)", e.getClass().getName()));
+    }
+
+    // lambda is the expression the lambda came from, for free variables
+    private GTemplate liftLambda(
+            java.util.List<VarExpr> params,
+            Expr body,
+            Expr lambda,
+            Scope scope)
+    {
+        var free = new java.util.ArrayList<VarExpr>();
+        var slots = new java.util.ArrayList<Integer>();
+        var bound = new java.util.HashSet<String>();
+        for (var p : params)
+            bound.add(p.name());
+        for (var name : Inliner.freeVars(body))
+        {
+            var slot = resolve(name, scope);
+            if (slot == null || bound.contains(name))
+                continue;
+            free.add(new VarExpr(name, lambda.srcPos()));
+            slots.add(slot);
+        }
+
+        var scParams = new java.util.ArrayList<VarExpr>(free);
+        scParams.addAll(params);
+        var sc = liftBody(String.format("$sc%d", m_supercombs.size()), scParams, body);
+
+        var s = new int[slots.size()];
+        for (int i = 0; i < s.length; i++)
+            s[i] = slots.get(i);
+        return new GTemplate.Pap(sc, s);
+    }
+
+    private static Integer resolve(String name, Scope scope)
+    {
+        for (var s = scope; s != null; s = s.m_outer)
+        {
+            var slot = s.m_names.get(name);
+            if (slot != null)
+                return slot;
+        }
+        return null;
+    }
+
+    private static Value literal(String name)
+    {
+        try
+        {
+            return SYSTEM_ENV.get(name).evaluate();
+        }
+        catch (EnvException | EvalException ex)
+        {
+            return null;
+        }
+    }
+
+    private static class Scope
+    {
+        Scope(Scope outer)
+        {
+            m_outer = outer;
+        }
+
+        final java.util.Map<String, Integer> m_names =
+            new java.util.HashMap<String, Integer>();
+        final Scope m_outer;
+    }
+
+    private static class Frame
+    {
+        int newSlot()
+        {
+            return m_nslots++;
+        }
+
+        int m_nslots;
+    }
+
+    private Frame m_frame;
+    private final java.util.List<Supercomb> m_supercombs =
+        new java.util.ArrayList<Supercomb>();
+    private final java.util.Map<String, GTemplate.Const> m_consts =
+        new java.util.HashMap<String, GTemplate.Const>();
+
+    private static final Env SYSTEM_ENV = new SystemEnv();
+}
@@ -0,0 +1,442 @@
+// Telemetry: JFR events for the parse and evaluation phases and for every
+// EvalException that ends an evaluation, and counters of what the tree
+// interpreter does, readable as the MBean interp:type=Metrics and recorded
+// as the periodic JFR event interp.Metrics. The counters only count the tree
+// engine; runs on -vm and -graph leave them as they are.
+//
+// None of it is paid for by a process that does not ask: the event classes
+// are only touched once a recording has started (loading them initializes
+// JFR, which costs more than running a small program), the MBean is only
+// registered with -Dinterp.metrics=true (creating the platform MBean server
+// costs about as much), and the counters only count once either of the two
+// is on.
+class Metrics
+{
+    static volatile boolean s_enabled = Boolean.getBoolean("interp.metrics");
+
+    // true once a run has counted, and never reset; the hooks in the tree
+    // interpreter check it before they look up the counters of their thread,
+    // so that a process that never counts never pays for the lookup. Whether
+    // a run counts is up to Counters.m_counting.
+    static volatile boolean s_counting;
+
+    // called on the thread of a run of the tree interpreter as it starts,
+    // which then counts if s_enabled is on at this point, whatever other
+    // runs do; what the thread counted while not counting is dropped
+    static void enter()
+    {
+        var counting = s_enabled;
+        if (counting && !s_counting)
+            s_counting = true;
+
+        var c = s_counters.get();
+        c.m_counting = counting;
+        c.clear();
+    }
+
+    // totals over all threads, see Counters
+    static final java.util.concurrent.atomic.LongAdder s_nodes =
+        new java.util.concurrent.atomic.LongAdder();
+    static final java.util.concurrent.atomic.LongAdder s_thunksCreated =
+        new java.util.concurrent.atomic.LongAdder();
+    static final java.util.concurrent.atomic.LongAdder s_thunksForced =
+        new java.util.concurrent.atomic.LongAdder();
+    static final java.util.concurrent.atomic.LongAdder s_lookups =
+        new java.util.concurrent.atomic.LongAdder();
+    static final java.util.concurrent.atomic.LongAdder s_lookupFrames =
+        new java.util.concurrent.atomic.LongAdder();
+    static final java.util.concurrent.atomic.LongAdder s_applications =
+        new java.util.concurrent.atomic.LongAdder();
+    static final java.util.concurrent.atomic.LongAccumulator s_maxDepth =
+        new java.util.concurrent.atomic.LongAccumulator(Math::max, 0);
+
+    // AbstractExpr.evaluate() when counting
+    static Value evaluate(AbstractExpr e, Env env)
+        throws EvalException
+    {
+        var c = s_counters.get();
+        if (!c.m_counting)
+            return e._evaluate(env);
+
+        if (++c.m_nodes == FLUSH_NODES)
+            c.flush();
+        if (++c.m_depth > c.m_maxDepth)
+            c.m_maxDepth = c.m_depth;
+        try
+        {
+            return e._evaluate(env);
+        }
+        finally
+        {
+            if (--c.m_depth == 0)
+                c.flush();
+        }
+    }
+
+    // the counters of the current thread, for the other hooks
+    static Counters counters()
+    {
+        return s_counters.get();
+    }
+
+    // an increment of a LongAdder costs about as much as evaluating a node,
+    // so each thread counts on its own and adds its counts up at the end of
+    // an evaluation, or every FLUSH_NODES nodes in a long one
+    static final class Counters
+    {
+        void flush()
+        {
+            s_nodes.add(m_nodes);
+            s_thunksCreated.add(m_thunksCreated);
+            s_thunksForced.add(m_thunksForced);
+            s_lookups.add(m_lookups);
+            s_lookupFrames.add(m_lookupFrames);
+            s_applications.add(m_applications);
+            s_maxDepth.accumulate(m_maxDepth);
+            clear();
+        }
+
+        void clear()
+        {
+            m_nodes = 0;
+            m_thunksCreated = 0;
+            m_thunksForced = 0;
+            m_lookups = 0;
+            m_lookupFrames = 0;
+            m_applications = 0;
+            m_maxDepth = m_depth;
+        }
+
+        // set by enter() for the run on this thread
+        boolean m_counting;
+        long m_nodes;
+        long m_thunksCreated;
+        long m_thunksForced;
+        long m_lookups;
+        long m_lookupFrames;
+        long m_applications;
+        int m_depth;
+        int m_maxDepth;
+    }
+
+    // true once a recording has been started in this process, at launch or
+    // later with jcmd JFR.start; checked at the start of each phase
+    static boolean recording()
+    {
+        if (!s_recording && jdk.jfr.FlightRecorder.isInitialized())
+            startRecording();
+        return s_recording;
+    }
+
+    private static synchronized void startRecording()
+    {
+        if (s_recording)
+            return;
+        jdk.jfr.FlightRecorder.addPeriodicEvent(MetricsEvent.class, Metrics::emit);
+        s_enabled = true;
+        s_recording = true;
+    }
+
+    static Expr compile(ModuleLoader loader, String srcFile)
+        throws ParseException, java.io.FileNotFoundException
+    {
+        var event = new ParseEvent();
+        event.begin();
+        try
+        {
+            return loader.link(srcFile);
+        }
+        finally
+        {
+            event.file = srcFile;
+            event.parallel = loader.parallel();
+            event.commit();
+        }
+    }
+
+    static Value run(Expr root, Test.Engine engine, Env env)
+        throws EvalException
+    {
+        var event = new EvalEvent();
+        event.begin();
+        try
+        {
+            return Test.evaluate(root, engine, env);
+        }
+        catch (EvalException ex)
+        {
+            var error = new EvalErrorEvent();
+            if (error.shouldCommit())
+            {
+                error.engine = engine.name();
+                error.message = ex.getMessage();
+                error.position = String.valueOf(ex.srcInfo());
+                error.depth = ex.depth();
+                error.commit();
+            }
+            event.failed = true;
+            throw ex;
+        }
+        finally
+        {
+            event.engine = engine.name();
+            event.commit();
+
+            // runs often end before the first period does
+            emit();
+        }
+    }
+
+    private static void emit()
+    {
+        var event = new MetricsEvent();
+        event.nodesEvaluated = s_nodes.sum();
+        event.thunksCreated = s_thunksCreated.sum();
+        event.thunksForced = s_thunksForced.sum();
+        event.envLookups = s_lookups.sum();
+        event.averageEnvLookupDepth = averageLookupDepth();
+        event.lambdaApplications = s_applications.sum();
+        event.maxRecursionDepth = s_maxDepth.get();
+        event.commit();
+    }
+
+    static double averageLookupDepth()
+    {
+        var lookups = s_lookups.sum();
+        return lookups == 0 ? 0 : (double)s_lookupFrames.sum() / lookups;
+    }
+
+    static void reset()
+    {
+        s_nodes.reset();
+        s_thunksCreated.reset();
+        s_thunksForced.reset();
+        s_lookups.reset();
+        s_lookupFrames.reset();
+        s_applications.reset();
+        s_maxDepth.reset();
+    }
+
+    private static volatile boolean s_recording;
+
+    private static final int FLUSH_NODES = 1 << 16;
+    private static final ThreadLocal<Counters> s_counters = ThreadLocal.withInitial(Counters::new);
+}
+
+// kept apart so that javax.management is only loaded when registered
+class MetricsBean implements javax.management.DynamicMBean
+{
+    static void register()
+    {
+        try
+        {
+            java.lang.management.ManagementFactory.getPlatformMBeanServer().registerMBean(
+                    new MetricsBean(),
+                    new javax.management.ObjectName("interp:type=Metrics"));
+        }
+        catch (javax.management.JMException ex)
+        {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private static final String[] ATTRIBUTES = {
+        "Enabled",
+        "NodesEvaluated",
+        "ThunksCreated",
+        "ThunksForced",
+        "EnvLookups",
+        "AverageEnvLookupDepth",
+        "LambdaApplications",
+        "MaxRecursionDepth",
+    };
+
+    public Object getAttribute(String name)
+        throws javax.management.AttributeNotFoundException
+    {
+        switch (name)
+        {
+            case "Enabled":
+            return Metrics.s_enabled;
+
+            case "NodesEvaluated":
+            return Metrics.s_nodes.sum();
+
+            case "ThunksCreated":
+            return Metrics.s_thunksCreated.sum();
+
+            case "ThunksForced":
+            return Metrics.s_thunksForced.sum();
+
+            case "EnvLookups":
+            return Metrics.s_lookups.sum();
+
+            case "AverageEnvLookupDepth":
+            return Metrics.averageLookupDepth();
+
+            case "LambdaApplications":
+            return Metrics.s_applications.sum();
+
+            case "MaxRecursionDepth":
+            return Metrics.s_maxDepth.get();
+
+            default:
+            throw new javax.management.AttributeNotFoundException(name);
+        }
+    }
+
+    public void setAttribute(javax.management.Attribute attribute)
+        throws javax.management.AttributeNotFoundException,
+               javax.management.InvalidAttributeValueException
+    {
+        if (!attribute.getName().equals("Enabled"))
+            throw new javax.management.AttributeNotFoundException(attribute.getName());
+        if (!(attribute.getValue() instanceof Boolean))
+            throw new javax.management.InvalidAttributeValueException(String.valueOf(attribute.getValue()));
+        Metrics.s_enabled = (Boolean)attribute.getValue();
+    }
+
+    public javax.management.AttributeList getAttributes(String[] names)
+    {
+        var list = new javax.management.AttributeList();
+        for (var name : names)
+        {
+            try
+            {
+                list.add(new javax.management.Attribute(name, getAttribute(name)));
+            }
+            catch (javax.management.AttributeNotFoundException ex)
+            {
+            }
+        }
+        return list;
+    }
+
+    public javax.management.AttributeList setAttributes(javax.management.AttributeList attributes)
+    {
+        var list = new javax.management.AttributeList();
+        for (var a : attributes.asList())
+        {
+            try
+            {
+                setAttribute(a);
+                list.add(a);
+            }
+            catch (javax.management.JMException ex)
+            {
+            }
+        }
+        return list;
+    }
+
+    public Object invoke(String name, Object[] params, String[] signature)
+        throws javax.management.ReflectionException
+    {
+        if (!name.equals("reset") || (params != null && params.length != 0))
+            throw new javax.management.ReflectionException(new NoSuchMethodException(name));
+        Metrics.reset();
+        return null;
+    }
+
+    public javax.management.MBeanInfo getMBeanInfo()
+    {
+        var attributes = new javax.management.MBeanAttributeInfo[ATTRIBUTES.length];
+        for (int i = 0; i < ATTRIBUTES.length; i++)
+        {
+            var name = ATTRIBUTES[i];
+            var type = name.equals("Enabled") ? "boolean"
+                : name.equals("AverageEnvLookupDepth") ? "double"
+                : "long";
+            attributes[i] = new javax.management.MBeanAttributeInfo(
+                    name, type, name, true, name.equals("Enabled"), type.equals("boolean"));
+        }
+
+        var reset = new javax.management.MBeanOperationInfo(
+                "reset",
+                "zero the counters",
+                new javax.management.MBeanParameterInfo[0],
+                "void",
+                javax.management.MBeanOperationInfo.ACTION);
+
+        return new javax.management.MBeanInfo(
+                Metrics.class.getName(),
+                "counters of the tree engine (-vm and -graph runs are not counted)",
+                attributes,
+                null,
+                new javax.management.MBeanOperationInfo[] { reset },
+                null);
+    }
+}
+
+@jdk.jfr.Name("interp.Parse")
+@jdk.jfr.Label("Parse")
+@jdk.jfr.Category("Interpreter")
+class ParseEvent extends jdk.jfr.Event
+{
+    @jdk.jfr.Label("Source File")
+    String file;
+
+    @jdk.jfr.Label("Parallel")
+    boolean parallel;
+}
+
+@jdk.jfr.Name("interp.Eval")
+@jdk.jfr.Label("Evaluation")
+@jdk.jfr.Category("Interpreter")
+class EvalEvent extends jdk.jfr.Event
+{
+    @jdk.jfr.Label("Engine")
+    String engine;
+
+    @jdk.jfr.Label("Failed")
+    boolean failed;
+}
+
+@jdk.jfr.Name("interp.EvalError")
+@jdk.jfr.Label("Evaluation Error")
+@jdk.jfr.Category("Interpreter")
+class EvalErrorEvent extends jdk.jfr.Event
+{
+    @jdk.jfr.Label("Engine")
+    String engine;
+
+    @jdk.jfr.Label("Message")
+    String message;
+
+    @jdk.jfr.Label("Position")
+    String position;
+
+    @jdk.jfr.Label("Depth")
+    @jdk.jfr.Description("Expressions the error was thrown through")
+    int depth;
+}
+
+@jdk.jfr.Name("interp.Metrics")
+@jdk.jfr.Label("Interpreter Counters")
+@jdk.jfr.Category("Interpreter")
+@jdk.jfr.Description("Counters of the tree engine; -vm and -graph runs are not counted")
+@jdk.jfr.Period("1 s")
+@jdk.jfr.StackTrace(false)
+class MetricsEvent extends jdk.jfr.Event
+{
+    @jdk.jfr.Label("Nodes Evaluated")
+    long nodesEvaluated;
+
+    @jdk.jfr.Label("Thunks Created")
+    long thunksCreated;
+
+    @jdk.jfr.Label("Thunks Forced")
+    long thunksForced;
+
+    @jdk.jfr.Label("Env Lookups")
+    long envLookups;
+
+    @jdk.jfr.Label("Average Env Lookup Depth")
+    double averageEnvLookupDepth;
+
+    @jdk.jfr.Label("Lambda Applications")
+    long lambdaApplications;
+
+    @jdk.jfr.Label("Max Recursion Depth")
+    long maxRecursionDepth;
+}
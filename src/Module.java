@@ -0,0 +1,845 @@
+// A program may be split over several source files. A source file starts
+// with zero or more lines
+//
+//     import <file>
+//
+// naming files relative to its own directory, and the bindings of all the
+// files of a program share one letrec scope.
+//
+// Each module is parsed and inlined once, against the bindings of the
+// modules it imports (transitively). Its compiled form is cached under a
+// key hashing its path, its content and the keys of its imports, so that
+// an edit invalidates the edited module and the modules importing it,
+// and nothing else.
+class Module
+{
+    Module(
+            String key,
+            java.util.List<String> imports,
+            java.util.Map<String, Expr> bindings,
+            SrcInfo srcLoc)
+    {
+        m_key = key;
+        m_imports = imports;
+        m_bindings = bindings;
+        m_srcLoc = srcLoc;
+    }
+
+    final String m_key;
+    final java.util.List<String> m_imports;
+    final java.util.Map<String, Expr> m_bindings;
+    final SrcInfo m_srcLoc;     // end of the source
+
+    // The form a module is cached in. Serializing the AST itself would
+    // recurse once per level, and a long line is deep enough to overflow
+    // the stack, so the nodes are written as a flat table instead: each
+    // node once, after the nodes it refers to by their index in the table.
+    // Nothing but primitives and strings is written, so that reading a
+    // cache file can be restricted to this class alone.
+    static class Form implements java.io.Serializable
+    {
+        Form(Module module)
+        {
+            m_module = module;
+        }
+
+        Module module()
+        {
+            return m_module;
+        }
+
+        private void writeObject(java.io.ObjectOutputStream out)
+            throws java.io.IOException
+        {
+            var w = new Writer(out);
+            w.string(m_module.m_key);
+            out.writeInt(m_module.m_imports.size());
+            for (var i : m_module.m_imports)
+                w.string(i);
+            w.pos(m_module.m_srcLoc);
+
+            var roots = new java.util.HashMap<String, Integer>();
+            for (var b : m_module.m_bindings.entrySet())
+                roots.put(b.getKey(), w.node(b.getValue()));
+            out.writeByte(END);
+
+            out.writeInt(roots.size());
+            for (var b : roots.entrySet())
+            {
+                w.string(b.getKey());
+                out.writeInt(b.getValue());
+            }
+        }
+
+        private void readObject(java.io.ObjectInputStream in)
+            throws java.io.IOException
+        {
+            var r = new Reader(in);
+            var key = r.string();
+            var imports = new java.util.ArrayList<String>();
+            for (int i = in.readInt(); i > 0; i--)
+                imports.add(r.string());
+            var srcLoc = SrcInfo.unpack(r.pos());
+
+            for (int kind = in.readByte(); kind != END; kind = in.readByte())
+                r.node(kind);
+
+            var bindings = new java.util.HashMap<String, Expr>();
+            for (int i = in.readInt(); i > 0; i--)
+                bindings.put(r.string(), r.node(in.readInt(), Expr.class));
+
+            m_module = new Module(key, imports, bindings, srcLoc);
+        }
+
+        private transient Module m_module;
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static class Writer
+    {
+        Writer(java.io.ObjectOutputStream out)
+        {
+            m_out = out;
+            m_strings.put(null, 0);
+        }
+
+        // the index of e, written first if it is not in the table yet
+        int node(Expr e)
+            throws java.io.IOException
+        {
+            var pending = new java.util.ArrayDeque<Expr>();
+            pending.push(e);
+            while (!pending.isEmpty())
+            {
+                var e1 = pending.peek();
+                if (m_nodes.containsKey(e1))
+                {
+                    pending.pop();
+                    continue;
+                }
+
+                var ready = true;
+                for (var child : children(e1))
+                {
+                    if (!m_nodes.containsKey(child))
+                    {
+                        pending.push(child);
+                        ready = false;
+                    }
+                }
+                if (!ready)
+                    continue;
+
+                pending.pop();
+                write(e1);
+                m_nodes.put(e1, m_nodes.size());
+            }
+            return m_nodes.get(e);
+        }
+
+        private static java.util.List<Expr> children(Expr e)
+        {
+            var children = new java.util.ArrayList<Expr>();
+            if (e instanceof AppExpr)
+            {
+                children.add(((AppExpr)e).e1());
+                children.add(((AppExpr)e).e2());
+            }
+            else if (e instanceof LetrecExpr)
+            {
+                children.add(((LetrecExpr)e).expr());
+                children.addAll(((LetrecExpr)e).bindings().values());
+            }
+            else if (e instanceof LambdaExpr)
+            {
+                children.add(((LambdaExpr)e).var());
+                children.add(((LambdaExpr)e).expr());
+            }
+            else if (e instanceof CondExpr)
+            {
+                children.add(((CondExpr)e).ec());
+                children.add(((CondExpr)e).et());
+                children.add(((CondExpr)e).ef());
+            }
+            else if (e instanceof CallExpr)
+                children.add(((CallExpr)e).app());
+            else if (e instanceof BinaryOpExpr)
+            {
+                children.add(((BinaryOpExpr)e).inner());
+                children.add(((BinaryOpExpr)e).rhs());
+            }
+            else if (e instanceof InlinedAppExpr)
+            {
+                children.addAll(((InlinedAppExpr)e).params());
+                children.addAll(((InlinedAppExpr)e).args());
+                children.add(((InlinedAppExpr)e).body());
+            }
+            else if (e instanceof MemoExpr)
+                children.add(((MemoExpr)e).body());
+            else if (e instanceof SharedExpr)
+                children.add(((SharedExpr)e).expr());
+            return children;
+        }
+
+        // e, whose children are in the table
+        private void write(Expr e)
+            throws java.io.IOException
+        {
+            if (e instanceof VarExpr)
+            {
+                m_out.writeByte(VAR);
+                pos(e.srcInfo());
+                string(((VarExpr)e).name());
+            }
+            else if (e instanceof AppExpr)
+            {
+                m_out.writeByte(APP);
+                pos(e.srcInfo());
+                index(((AppExpr)e).e1());
+                index(((AppExpr)e).e2());
+            }
+            else if (e instanceof LetrecExpr)
+            {
+                var l = (LetrecExpr)e;
+                m_out.writeByte(LETREC);
+                pos(e.srcInfo());
+                index(l.expr());
+                m_out.writeInt(l.bindings().size());
+                for (var b : l.bindings().entrySet())
+                {
+                    string(b.getKey());
+                    index(b.getValue());
+                }
+            }
+            else if (e instanceof LambdaExpr)
+            {
+                m_out.writeByte(LAMBDA);
+                pos(e.srcInfo());
+                index(((LambdaExpr)e).var());
+                index(((LambdaExpr)e).expr());
+            }
+            else if (e instanceof CondExpr)
+            {
+                var c = (CondExpr)e;
+                m_out.writeByte(COND);
+                pos(e.srcInfo());
+                index(c.ec());
+                index(c.et());
+                index(c.ef());
+            }
+            else if (e instanceof CallExpr)
+            {
+                m_out.writeByte(CALL);
+                index(((CallExpr)e).app());
+                m_out.writeInt(((CallExpr)e).args().length);
+            }
+            else if (e instanceof BinaryOpExpr)
+            {
+                var b = (BinaryOpExpr)e;
+                m_out.writeByte(BINARY_OP);
+                pos(e.srcInfo());
+                index(b.inner());
+                m_out.writeByte(b.op().op().ordinal());
+                index(b.rhs());
+            }
+            else if (e instanceof InlinedAppExpr)
+            {
+                var call = (InlinedAppExpr)e;
+                m_out.writeByte(INLINED_APP);
+                pos(e.srcInfo());
+                m_out.writeInt(call.params().size());
+                for (var p : call.params())
+                    index(p);
+                m_out.writeInt(call.args().size());
+                for (var arg : call.args())
+                    index(arg);
+                index(call.body());
+            }
+            else if (e instanceof MemoExpr)
+            {
+                m_out.writeByte(MEMO);
+                index(((MemoExpr)e).body());
+                m_out.writeInt(((MemoExpr)e).slots());
+            }
+            else if (e instanceof SharedExpr)
+            {
+                m_out.writeByte(SHARED);
+                m_out.writeInt(((SharedExpr)e).slot());
+                index(((SharedExpr)e).expr());
+            }
+            else
+                throw new java.io.NotSerializableException(e.getClass().getName());
+        }
+
+        private void index(Expr e)
+            throws java.io.IOException
+        {
+            m_out.writeInt(m_nodes.get(e));
+        }
+
+        // packed positions refer to the file table of this process
+        void pos(SrcInfo s)
+            throws java.io.IOException
+        {
+            string(s.file());
+            m_out.writeInt(s.line());
+            m_out.writeInt(s.charBegin());
+            m_out.writeInt(s.charEnd());
+        }
+
+        // each string is written once, and then by its index
+        void string(String s)
+            throws java.io.IOException
+        {
+            var i = m_strings.get(s);
+            if (i != null)
+            {
+                m_out.writeInt(i);
+                return;
+            }
+            m_out.writeInt(-1);
+            m_out.writeUTF(s);
+            m_strings.put(s, m_strings.size());
+        }
+
+        private final java.io.ObjectOutputStream m_out;
+        private final java.util.Map<Expr, Integer> m_nodes = new java.util.IdentityHashMap<Expr, Integer>();
+        private final java.util.Map<String, Integer> m_strings = new java.util.HashMap<String, Integer>();
+    }
+
+    // reads what Writer wrote, checking each reference against the table
+    private static class Reader
+    {
+        Reader(java.io.ObjectInputStream in)
+        {
+            m_in = in;
+            m_strings.add(null);
+            m_fileIndices.add(null);
+        }
+
+        void node(int kind)
+            throws java.io.IOException
+        {
+            Expr e;
+            switch (kind)
+            {
+                case VAR:
+                {
+                    var pos = pos();
+                    e = new VarExpr(string(), pos);
+                    break;
+                }
+
+                case APP:
+                {
+                    var pos = pos();
+                    e = new AppExpr(node(Expr.class), node(Expr.class), pos);
+                    break;
+                }
+
+                case LETREC:
+                {
+                    var pos = pos();
+                    var body = node(Expr.class);
+                    var bindings = new java.util.HashMap<String, Expr>();
+                    for (int i = m_in.readInt(); i > 0; i--)
+                        bindings.put(string(), node(Expr.class));
+                    e = new LetrecExpr(body, bindings, pos);
+                    break;
+                }
+
+                case LAMBDA:
+                {
+                    var pos = pos();
+                    e = new LambdaExpr(node(VarExpr.class), node(Expr.class), pos);
+                    break;
+                }
+
+                case COND:
+                {
+                    var pos = pos();
+                    e = new CondExpr(node(Expr.class), node(Expr.class), node(Expr.class), pos);
+                    break;
+                }
+
+                case CALL:
+                {
+                    var app = node(AppExpr.class);
+                    var n = m_in.readInt();
+                    Expr a = app;
+                    for (int i = 0; i < n; i++)
+                    {
+                        if (!(a instanceof AppExpr))
+                            throw new java.io.InvalidObjectException("bad call");
+                        a = ((AppExpr)a).e1();
+                    }
+                    e = new CallExpr(app, n);
+                    break;
+                }
+
+                case BINARY_OP:
+                {
+                    var pos = pos();
+                    var inner = node(AppExpr.class);
+                    var op = m_in.readByte();
+                    if (op < 0 || op >= OPS.length)
+                        throw new java.io.InvalidObjectException("bad operator");
+                    e = new BinaryOpExpr(inner, new BinOpValue(OPS[op]), node(Expr.class), pos);
+                    break;
+                }
+
+                case INLINED_APP:
+                {
+                    var pos = pos();
+                    var params = new java.util.ArrayList<VarExpr>();
+                    for (int i = m_in.readInt(); i > 0; i--)
+                        params.add(node(VarExpr.class));
+                    var args = new java.util.ArrayList<Expr>();
+                    for (int i = m_in.readInt(); i > 0; i--)
+                        args.add(node(Expr.class));
+                    e = new InlinedAppExpr(params, args, node(Expr.class), pos);
+                    break;
+                }
+
+                case MEMO:
+                {
+                    var body = node(Expr.class);
+                    var slots = m_in.readInt();
+                    if (slots < 0 || slots > m_nodes.size())
+                        throw new java.io.InvalidObjectException("bad slot count");
+                    e = new MemoExpr(body, slots);
+                    break;
+                }
+
+                case SHARED:
+                {
+                    var slot = m_in.readInt();
+                    if (slot < 0 || slot >= m_nodes.size())
+                        throw new java.io.InvalidObjectException("bad slot");
+                    e = new SharedExpr(slot, node(Expr.class));
+                    break;
+                }
+
+                default:
+                throw new java.io.InvalidObjectException("bad node kind: " + kind);
+            }
+            m_nodes.add(e);
+        }
+
+        <T extends Expr> T node(int i, Class<T> c)
+            throws java.io.IOException
+        {
+            if (i < 0 || i >= m_nodes.size() || !c.isInstance(m_nodes.get(i)))
+                throw new java.io.InvalidObjectException("bad node reference: " + i);
+            return c.cast(m_nodes.get(i));
+        }
+
+        private <T extends Expr> T node(Class<T> c)
+            throws java.io.IOException
+        {
+            return node(m_in.readInt(), c);
+        }
+
+        long pos()
+            throws java.io.IOException
+        {
+            var i = stringIndex();
+            var fileIndex = m_fileIndices.get(i);
+            if (fileIndex == null)
+            {
+                fileIndex = SrcInfo.fileIndex(m_strings.get(i));
+                m_fileIndices.set(i, fileIndex);
+            }
+            return SrcInfo.pack(m_strings.get(i), fileIndex, m_in.readInt(), m_in.readInt(), m_in.readInt());
+        }
+
+        String string()
+            throws java.io.IOException
+        {
+            return m_strings.get(stringIndex());
+        }
+
+        private int stringIndex()
+            throws java.io.IOException
+        {
+            var i = m_in.readInt();
+            if (i == -1)
+            {
+                var s = m_in.readUTF();
+                m_strings.add(s);
+                m_fileIndices.add(null);
+                return m_strings.size() - 1;
+            }
+            if (i < 0 || i >= m_strings.size())
+                throw new java.io.InvalidObjectException("bad string reference: " + i);
+            return i;
+        }
+
+        private final java.io.ObjectInputStream m_in;
+        private final java.util.List<Expr> m_nodes = new java.util.ArrayList<Expr>();
+        private final java.util.List<String> m_strings = new java.util.ArrayList<String>();
+        private final java.util.List<Integer> m_fileIndices = new java.util.ArrayList<Integer>();
+    }
+
+    private static final int END = 0;
+    private static final int VAR = 1;
+    private static final int APP = 2;
+    private static final int LETREC = 3;
+    private static final int LAMBDA = 4;
+    private static final int COND = 5;
+    private static final int INLINED_APP = 6;
+    private static final int BINARY_OP = 7;
+    private static final int CALL = 8;
+    private static final int MEMO = 9;
+    private static final int SHARED = 10;
+
+    private static final BinOpValue.Op[] OPS = BinOpValue.Op.values();
+}
+
+class ModuleLoader
+{
+    // bump whenever the compiled form of a module changes
+    static final String CACHE_VERSION = "6";
+
+    // cacheDir may be null, in which case modules are only cached in memory
+    public ModuleLoader(boolean parallel, java.io.File cacheDir)
+    {
+        m_parallel = parallel;
+        m_cacheDir = cacheDir;
+    }
+
+    // returns the program whose main module is srcFile
+    public Expr link(String srcFile)
+        throws ParseException, java.io.FileNotFoundException
+    {
+        var loaded = new java.util.LinkedHashMap<String, Loaded>();
+        var main = load(srcFile, null, null, loaded, new java.util.HashSet<String>());
+
+        var bindings = new java.util.HashMap<String, Expr>();
+        for (var l : loaded.values())
+        {
+            for (var b : l.m_module.m_bindings.entrySet())
+            {
+                if (bindings.containsKey(b.getKey()))
+                    throw new ParseException(
+                            b.getValue().srcInfo(),
+                            String.format("already bound: %s", b.getKey()));
+                bindings.put(b.getKey(), b.getValue());
+            }
+        }
+
+        return new LetrecExpr(
+                new VarExpr("root", main.m_module.m_srcLoc),
+                bindings);
+    }
+
+    public boolean parallel()
+    {
+        return m_parallel;
+    }
+
+    // modules loaded so far that had to be compiled, and that were found
+    // in the cache, in memory or in cacheDir
+    public int compiled()
+    {
+        return m_compiled;
+    }
+
+    public int cached()
+    {
+        return m_cached;
+    }
+
+    // loaded collects the modules of the program, imports first; file is
+    // null for the main module
+    private Loaded load(
+            String path,
+            String file,
+            SrcInfo importedAt,
+            java.util.Map<String, Loaded> loaded,
+            java.util.Set<String> loading)
+        throws ParseException, java.io.FileNotFoundException
+    {
+        var id = canonical(path);
+        var l = loaded.get(id);
+        if (l != null)
+            return l;
+        if (!loading.add(id))
+            throw new ParseException(
+                    importedAt,
+                    String.format("import cycle: %s", file));
+
+        byte[] bytes;
+        try (var in = new java.io.FileInputStream(path))
+        {
+            bytes = in.readAllBytes();
+        }
+        catch (java.io.FileNotFoundException ex)
+        {
+            if (importedAt == null)
+                throw ex;
+            throw new ParseException(importedAt, ex.getMessage());
+        }
+        catch (java.io.IOException ex)
+        {
+            throw new ParseException(
+                    new SrcInfo(file, 1, 1, 1),
+                    "I/O error", ex);
+        }
+
+        var src = new Source(new String(bytes), file);
+
+        var imports = new java.util.ArrayList<Loaded>();
+        var dir = new java.io.File(path).getParentFile();
+        for (int i = 0; i < src.m_imports.size(); i++)
+        {
+            var p = new java.io.File(dir, src.m_imports.get(i)).getPath();
+            imports.add(load(p, p, src.m_importedAt.get(i), loaded, loading));
+        }
+
+        var key = key(file, bytes, imports);
+        var module = m_cache.get(key);
+        if (module == null)
+            module = readCache(key);
+        if (module == null)
+        {
+            module = compile(key, src, imports);
+            writeCache(module);
+            m_compiled++;
+        }
+        else
+            m_cached++;
+        m_cache.put(key, module);
+
+        l = new Loaded(module, imports);
+        loading.remove(id);
+        loaded.put(id, l);
+        return l;
+    }
+
+    private Module compile(String key, Source src, java.util.List<Loaded> imports)
+        throws ParseException
+    {
+        try
+        {
+            return compileModule(key, src, imports);
+        }
+        catch (SrcInfo.LimitException ex)
+        {
+            throw ex.toParseException();
+        }
+    }
+
+    private Module compileModule(String key, Source src, java.util.List<Loaded> imports)
+        throws ParseException
+    {
+        java.util.Map<String, Expr> bindings;
+        SrcInfo srcLoc;
+        var in = new java.io.StringReader(src.m_body);
+        if (m_parallel)
+        {
+            var parser = new ParallelParser(in, src.m_firstLine, src.m_file);
+            bindings = parser.parseBindings();
+            srcLoc = parser.srcLoc();
+        }
+        else
+        {
+            var parser = new Parser(in, src.m_firstLine, src.m_file);
+
+            var indent = 0;
+            bindings = parser.parseBindings(indent);
+            srcLoc = parser.srcLoc();
+        }
+
+        // all modules of the program are imported by the main one
+        var visible = new java.util.HashMap<String, Expr>();
+        collectBindings(imports, visible, new java.util.HashSet<Loaded>());
+        var closed = src.m_file == null;
+        bindings = new Inliner().inlineModule(bindings, visible, closed);
+
+        // so that a module loaded from the cache is not rewritten again
+        visible.putAll(bindings);
+        bindings = new Cse().rewriteModule(bindings, visible);
+
+        var importKeys = new java.util.ArrayList<String>();
+        for (var i : imports)
+            importKeys.add(i.m_module.m_key);
+
+        return new Module(key, importKeys, bindings, srcLoc);
+    }
+
+    private static void collectBindings(
+            java.util.List<Loaded> imports,
+            java.util.Map<String, Expr> bindings,
+            java.util.Set<Loaded> seen)
+    {
+        for (var i : imports)
+        {
+            if (!seen.add(i))
+                continue;
+            for (var b : i.m_module.m_bindings.entrySet())
+                bindings.putIfAbsent(b.getKey(), b.getValue());
+            collectBindings(i.m_imports, bindings, seen);
+        }
+    }
+
+    private static String key(String file, byte[] bytes, java.util.List<Loaded> imports)
+    {
+        try
+        {
+            var md = java.security.MessageDigest.getInstance("SHA-256");
+            md.update(CACHE_VERSION.getBytes());
+            md.update((byte)0);
+            md.update(file == null ? new byte[0] : file.getBytes());
+            md.update((byte)(file == null ? 0 : 1));
+            md.update(bytes);
+            for (var i : imports)
+            {
+                md.update((byte)0);
+                md.update(i.m_module.m_key.getBytes());
+            }
+
+            var key = new StringBuilder();
+            for (var b : md.digest())
+                key.append(String.format("%02x", b));
+            return key.toString();
+        }
+        catch (java.security.NoSuchAlgorithmException ex)
+        {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    // a stale or unreadable cache entry is simply compiled again; a cache
+    // file holds one Module.Form and nothing else, so nothing else is read
+    private Module readCache(String key)
+    {
+        if (m_cacheDir == null)
+            return null;
+
+        var f = new java.io.File(m_cacheDir, key + ".module");
+        if (!f.exists())
+            return null;
+
+        try (var in = new java.io.ObjectInputStream(
+                    new java.io.BufferedInputStream(new java.io.FileInputStream(f))))
+        {
+            in.setObjectInputFilter(java.io.ObjectInputFilter.Config.createFilter(
+                        "maxdepth=1;maxrefs=1;maxarray=0;maxbytes=" + f.length() + ";Module$Form;!*"));
+            return ((Module.Form)in.readObject()).module();
+        }
+        catch (java.io.IOException | ClassNotFoundException | RuntimeException ex)
+        {
+            return null;
+        }
+    }
+
+    private void writeCache(Module module)
+    {
+        if (m_cacheDir == null)
+            return;
+
+        java.io.File tmp = null;
+        try
+        {
+            m_cacheDir.mkdirs();
+            tmp = java.io.File.createTempFile(module.m_key, ".tmp", m_cacheDir);
+            try (var out = new java.io.ObjectOutputStream(
+                        new java.io.BufferedOutputStream(new java.io.FileOutputStream(tmp))))
+            {
+                out.writeObject(new Module.Form(module));
+            }
+            java.nio.file.Files.move(
+                    tmp.toPath(),
+                    new java.io.File(m_cacheDir, module.m_key + ".module").toPath(),
+                    java.nio.file.StandardCopyOption.REPLACE_EXISTING,
+                    java.nio.file.StandardCopyOption.ATOMIC_MOVE);
+            tmp = null;
+        }
+        catch (Throwable ex)
+        {
+            // the cache is only an optimization, so failing to write it is
+            // a miss, unless the VM cannot go on
+            if (ex instanceof VirtualMachineError && !(ex instanceof StackOverflowError))
+                throw (VirtualMachineError)ex;
+        }
+        finally
+        {
+            if (tmp != null)
+                tmp.delete();
+        }
+    }
+
+    private static String canonical(String path)
+    {
+        try
+        {
+            return new java.io.File(path).getCanonicalPath();
+        }
+        catch (java.io.IOException ex)
+        {
+            return new java.io.File(path).getAbsolutePath();
+        }
+    }
+
+    // a source file split into its imports and the rest
+    private static class Source
+    {
+        Source(String text, String file)
+        {
+            m_file = file;
+            m_imports = new java.util.ArrayList<String>();
+            m_importedAt = new java.util.ArrayList<SrcInfo>();
+
+            var i = 0;
+            var l = 1;
+            while (text.startsWith("import ", i))
+            {
+                var end = i;
+                while (end < text.length() && text.charAt(end) != '\n' && text.charAt(end) != '\r')
+                    end++;
+
+                // otherwise a binding of a variable named import
+                var name = text.substring(i + 7, end);
+                if (name.isEmpty() || name.indexOf(' ') >= 0)
+                    break;
+                m_imports.add(name);
+                m_importedAt.add(new SrcInfo(file, l, 8, end - i));
+
+                if (text.startsWith("\r\n", end))
+                    end++;
+                i = Math.min(end + 1, text.length());
+                l++;
+            }
+
+            m_body = text.substring(i);
+            m_firstLine = l;
+        }
+
+        final String m_file;
+        final java.util.List<String> m_imports;
+        final java.util.List<SrcInfo> m_importedAt;
+        final String m_body;
+        final int m_firstLine;
+    }
+
+    private static class Loaded
+    {
+        Loaded(Module module, java.util.List<Loaded> imports)
+        {
+            m_module = module;
+            m_imports = imports;
+        }
+
+        final Module m_module;
+        final java.util.List<Loaded> m_imports;
+    }
+
+    private final boolean m_parallel;
+    private final java.io.File m_cacheDir;
+    private int m_compiled;
+    private int m_cached;
+    private final java.util.Map<String, Module> m_cache =
+        new java.util.HashMap<String, Module>();
+}
@@ -0,0 +1,188 @@
+// A program compiled once and evaluated any number of times, by any number
+// of threads at once, for embedding:
+//
+//     var area = Program.compile("root = pi * r * r\npi = 3.14159\n");
+//     area.evaluate(java.util.Map.of("r", 2.0));     // 12.56636
+//
+// The free variables of the source that are not literals (see SystemEnv)
+// are its inputs, bound to values given per evaluation. An input left
+// unbound is an unbound var error like any other.
+//
+// A Program is immutable once compiled. Each evaluation builds its own
+// environments, the RecEnv of the top-level bindings included, and the AST
+// it walks is never written to, so evaluations share nothing but the
+// synchronized position tables of SrcInfo. Evaluation uses the tree
+// interpreter, the only engine that takes an Env, and goes through
+// Test.run like a command-line run, JFR events and counters included.
+//
+// The rest of the interpreter is package-private, so the API only deals in
+// Program, Program.Failure and plain Java values. Like every class here it
+// lives in the unnamed package, which code in a named package cannot import
+// from; such code has to reach it through reflection.
+public final class Program
+{
+    // a source that does not parse, or an evaluation that fails
+    public static final class Failure extends Exception
+    {
+        private Failure(RootException cause)
+        {
+            super(null, cause, false, false);
+        }
+
+        // without the position
+        public String getMessage()
+        {
+            return getCause().getMessage();
+        }
+
+        // line(charBegin-charEnd)
+        public String position()
+        {
+            return String.valueOf(((RootException)getCause()).srcInfo());
+        }
+
+        // as Test prints it
+        public String toString()
+        {
+            return getCause().toString();
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    // source is a main module without imports
+    public static Program compile(String source)
+        throws Failure
+    {
+        try
+        {
+            var parser = new Parser(new java.io.StringReader(source), 1, null);
+            var bindings = parser.parseBindings(0);
+            var srcLoc = parser.srcLoc();
+
+            // inputs are never literals, so the program is closed
+            bindings = new Inliner().inlineModule(bindings, java.util.Map.of(), true);
+            var root = new Cse().rewrite(new LetrecExpr(new VarExpr("root", srcLoc), bindings));
+            return new Program(root);
+        }
+        catch (ParseException ex)
+        {
+            throw new Failure(ex);
+        }
+        catch (SrcInfo.LimitException ex)
+        {
+            throw new Failure(ex.toParseException());
+        }
+    }
+
+    private Program(Expr root)
+    {
+        var inputs = new java.util.TreeSet<String>();
+        var system = new SystemEnv();
+        for (var name : Inliner.freeVars(root))
+        {
+            try
+            {
+                system.get(name);
+            }
+            catch (EnvException ex)
+            {
+                inputs.add(name);
+            }
+        }
+
+        m_root = root;
+        m_inputs = java.util.Collections.unmodifiableSet(inputs);
+    }
+
+    // the names evaluate() accepts bindings for
+    public java.util.Set<String> inputs()
+    {
+        return m_inputs;
+    }
+
+    // a Double, a Boolean, or an opaque value such as a function, which
+    // prints as Test prints it and may be bound to an input
+    public Object evaluate()
+        throws Failure
+    {
+        return evaluate(new SystemEnv());
+    }
+
+    // values are Numbers, Booleans, or values evaluate() returned
+    public Object evaluate(java.util.Map<String, ?> bindings)
+        throws Failure
+    {
+        if (bindings.isEmpty())
+            return evaluate();
+
+        var inputs = new java.util.HashMap<String, Closure>();
+        for (var b : bindings.entrySet())
+        {
+            if (!m_inputs.contains(b.getKey()))
+                throw new IllegalArgumentException(
+                        String.format("not an input: %s", b.getKey()));
+            inputs.put(b.getKey(), new ValueClosure(value(b.getValue())));
+        }
+        return evaluate(new InputEnv(inputs, new SystemEnv()));
+    }
+
+    private Object evaluate(Env env)
+        throws Failure
+    {
+        Value val;
+        try
+        {
+            val = Test.run(m_root, Test.Engine.Tree, env);
+        }
+        catch (EvalException ex)
+        {
+            throw new Failure(ex);
+        }
+
+        if (val instanceof DoubleValue)
+            return ((DoubleValue)val).val();
+        else if (val instanceof BooleanValue)
+            return ((BooleanValue)val).val();
+        else
+            return val;
+    }
+
+    private static Value value(Object o)
+    {
+        if (o instanceof Value)
+            return (Value)o;
+        else if (o instanceof Number)
+            return new DoubleValue(((Number)o).doubleValue());
+        else if (o instanceof Boolean)
+            return new BooleanValue((Boolean)o);
+        else
+            throw new IllegalArgumentException(
+                    String.format("not a value: %s", o));
+    }
+
+    private final Expr m_root;
+    private final java.util.Set<String> m_inputs;
+}
+
+class InputEnv implements Env
+{
+    // the names of inputs are never literals, so they are looked up first
+    public InputEnv(java.util.Map<String, Closure> inputs, Env outer)
+    {
+        m_inputs = inputs;
+        m_outer = outer;
+    }
+
+    public Closure get(String var)
+        throws EnvException
+    {
+        var clo = m_inputs.get(var);
+        if (clo == null)
+            clo = m_outer.get(var);
+        return clo;
+    }
+
+    private final java.util.Map<String, Closure> m_inputs;
+    private final Env m_outer;
+}
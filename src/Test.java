@@ -1,25 +1,92 @@
 public class Test
 {
+    public enum Engine {
+        Tree,
+        Vm,
+        Graph
+    };
+
     public static void main(String[] args)
     {
-        if (args.length != 1)
-            printUsage();
+        var engine = Engine.Tree;
+        var parallel = false;
+        java.io.File cacheDir = null;
+        var stats = false;
+        var inputs = new java.util.LinkedHashMap<String, Object>();
+        var threads = 0;
 
-        try
+        int a = 0;
+        for (; a < args.length && args[a].startsWith("-"); a++)
         {
-            var srcFile = args[0];
+            switch (args[a])
+            {
+                case "-vm":
+                engine = Engine.Vm;
+                break;
+
+                case "-graph":
+                engine = Engine.Graph;
+                break;
+
+                case "-parallel":
+                parallel = true;
+                break;
+
+                case "-cache":
+                if (++a == args.length)
+                    printUsage();
+                cacheDir = new java.io.File(args[a]);
+                break;
+
+                case "-stats":
+                stats = true;
+                break;
+
+                case "-input":
+                if (++a == args.length || args[a].indexOf('=') <= 0)
+                    printUsage();
+                inputs.put(
+                        args[a].substring(0, args[a].indexOf('=')),
+                        inputValue(args[a].substring(args[a].indexOf('=') + 1)));
+                break;
 
-            var parser = new Parser(srcFile);
+                case "-threads":
+                if (++a == args.length || !args[a].matches("[1-9][0-9]{0,3}"))
+                    printUsage();
+                threads = Integer.parseInt(args[a]);
+                break;
+
+                default:
+                printUsage();
+            }
+        }
+
+        if (args.length - a != 1)
+            printUsage();
 
-            var indent = 0;
-            var bindings = parser.parseBindings(indent);
+        if (!inputs.isEmpty() || threads > 0)
+        {
+            if (engine != Engine.Tree || parallel || cacheDir != null || stats)
+                printUsage();
+            runProgram(args[a], inputs, Math.max(threads, 1));
+            return;
+        }
 
-            var root = new LetrecExpr(
-                    new VarExpr("root", parser.srcLoc()),
-                    bindings);
+        if (Metrics.s_enabled)
+            MetricsBean.register();
+        else if (stats)
+            Metrics.s_enabled = true;
 
-            var result = root.evaluate(initEnv());
+        try
+        {
+            var loader = new ModuleLoader(parallel, cacheDir);
+            var root = compile(loader, args[a]);
+            if (stats)
+                System.err.format("modules: %d compiled, %d cached%n", loader.compiled(), loader.cached());
+            var result = run(root, engine);
             System.out.println(result);
+            if (stats && engine == Engine.Tree)
+                printCounters();
         }
         catch (RootException ex)
         {
@@ -33,9 +100,170 @@ public class Test
         }
     }
 
+    private static Object inputValue(String s)
+    {
+        if (s.equals("true") || s.equals("false"))
+            return Boolean.valueOf(s);
+
+        try
+        {
+            return Double.valueOf(s);
+        }
+        catch (NumberFormatException ex)
+        {
+            printUsage();
+            return null;
+        }
+    }
+
+    // srcFile run as an embedding runs it: compiled once into a Program,
+    // then evaluated by that many threads at once, whose results are
+    // printed in order
+    private static void runProgram(String srcFile, java.util.Map<String, Object> inputs, int threads)
+    {
+        var program = compileProgram(srcFile);
+        var results = new String[threads];
+        var failed = new boolean[threads];
+        var workers = new Thread[threads];
+        for (int t = 0; t < threads; t++)
+        {
+            var i = t;
+            workers[t] = new Thread(() ->
+            {
+                try
+                {
+                    results[i] = String.valueOf(program.evaluate(inputs));
+                }
+                catch (Program.Failure ex)
+                {
+                    results[i] = ex.toString();
+                    failed[i] = true;
+                }
+                catch (IllegalArgumentException ex)
+                {
+                    results[i] = String.format("%s, inputs: %s", ex.getMessage(), program.inputs());
+                    failed[i] = true;
+                }
+            });
+            workers[t].start();
+        }
+
+        var ok = true;
+        for (int t = 0; t < threads; t++)
+        {
+            try
+            {
+                workers[t].join();
+            }
+            catch (InterruptedException ex)
+            {
+                throw new RuntimeException(ex);
+            }
+
+            if (failed[t])
+                System.err.println(results[t]);
+            else
+                System.out.println(results[t]);
+            ok &= !failed[t];
+        }
+        if (!ok)
+            System.exit(-1);
+    }
+
+    private static Program compileProgram(String srcFile)
+    {
+        try (var in = new java.io.FileReader(srcFile))
+        {
+            var source = new java.io.StringWriter();
+            in.transferTo(source);
+            return Program.compile(source.toString());
+        }
+        catch (Program.Failure ex)
+        {
+            System.err.println(ex);
+        }
+        catch (java.io.IOException ex)
+        {
+            System.err.println(ex);
+        }
+        System.exit(-1);
+        return null;
+    }
+
+    static Expr compile(String srcFile)
+        throws ParseException, java.io.FileNotFoundException
+    {
+        return compile(srcFile, false, null);
+    }
+
+    static Expr compile(String srcFile, boolean parallel, java.io.File cacheDir)
+        throws ParseException, java.io.FileNotFoundException
+    {
+        return compile(new ModuleLoader(parallel, cacheDir), srcFile);
+    }
+
+    static Expr compile(ModuleLoader loader, String srcFile)
+        throws ParseException, java.io.FileNotFoundException
+    {
+        if (Metrics.recording())
+            return Metrics.compile(loader, srcFile);
+        return loader.link(srcFile);
+    }
+
+    static Value run(Expr root, Engine engine)
+        throws EvalException
+    {
+        return run(root, engine, initEnv());
+    }
+
+    // env is only used by the tree engine; the others run closed programs
+    static Value run(Expr root, Engine engine, Env env)
+        throws EvalException
+    {
+        if (Metrics.recording())
+            return Metrics.run(root, engine, env);
+        return evaluate(root, engine, env);
+    }
+
+    static Value evaluate(Expr root, Engine engine)
+        throws EvalException
+    {
+        return evaluate(root, engine, initEnv());
+    }
+
+    static Value evaluate(Expr root, Engine engine, Env env)
+        throws EvalException
+    {
+        switch (engine)
+        {
+            case Vm:
+            return Vm.of(root).run();
+
+            case Graph:
+            return new GraphReducer(root).run();
+
+            default:
+            Metrics.enter();
+            return root.evaluate(env);
+        }
+    }
+
+    private static void printCounters()
+    {
+        System.err.format(java.util.Locale.ROOT, "eval: %d nodes, %d thunks created, %d forced, %d lookups, %.2f frames each, %d applications, depth %d%n",
+                Metrics.s_nodes.sum(),
+                Metrics.s_thunksCreated.sum(),
+                Metrics.s_thunksForced.sum(),
+                Metrics.s_lookups.sum(),
+                Metrics.averageLookupDepth(),
+                Metrics.s_applications.sum(),
+                Metrics.s_maxDepth.get());
+    }
+
     private static void printUsage()
     {
-        System.err.format("Usage: java %s <source_file>%n", Test.class.getName());
+        System.err.format("Usage: java %s [-vm | -graph] [-parallel] [-cache <dir>] [-stats] <source_file>%n", Test.class.getName());
+        System.err.format("       java %s [-input <name>=<value>]... [-threads <n>] <source_file>%n", Test.class.getName());
         System.exit(-1);
     }
 
@@ -50,8 +278,17 @@ class Parser
     public Parser(String srcFile)
         throws java.io.FileNotFoundException
     {
-        var freader = new java.io.FileReader(srcFile);
-        reader = new java.io.LineNumberReader(freader);
+        this(new java.io.FileReader(srcFile), 1, null);
+    }
+
+    // firstLine is the line number of the first line read from in; file
+    // names the source in positions, null for the main source file
+    public Parser(java.io.Reader in, int firstLine, String file)
+    {
+        m_file = file;
+        m_fileIndex = SrcInfo.fileIndex(file);
+        reader = new java.io.LineNumberReader(in);
+        reader.setLineNumber(firstLine - 1);
 
         line = null;
         i0 = 0;
@@ -62,7 +299,7 @@ class Parser
         var l = reader.getLineNumber();
         if (l == 0)
             l = 1;
-        return new SrcInfo(l, i0 + 1, i0 + 1);
+        return srcInfo(l, i0 + 1, i0 + 1);
     }
 
     public java.util.Map<String, Expr> parseBindings(
@@ -125,7 +362,7 @@ class Parser
             return null;
         else if (i > indent)
             throw new ParseException(
-                    new SrcInfo(l, 1, i),
+                    srcInfo(l, 1, i),
                     String.format("indent %d (expected %d)", i, indent));
 
         // variables
@@ -139,19 +376,19 @@ class Parser
 
             if (varName.isEmpty())
                 throw new ParseException(
-                        new SrcInfo(l, i0 + 1, i + 1),
+                        srcInfo(l, i0 + 1, i + 1),
                         "variable name is empty");
 
             if (i == line.length())
             {
                 i0 = i;
                 throw new ParseException(
-                        new SrcInfo(l, i0 + 1, i0 + 1),
+                        srcInfo(l, i0 + 1, i0 + 1),
                         "unexpected end of line");
             }
 
             if (!varName.equals("="))
-                vars.add(new VarExpr(varName, new SrcInfo(l, i0 + 1, i)));
+                vars.add(new VarExpr(varName, pos(l, i0 + 1, i)));
 
             i0 = i + 1;
 
@@ -161,7 +398,7 @@ class Parser
 
         if (vars.isEmpty())
             throw new ParseException(
-                    new SrcInfo(l, i0 + 1, i0 + 1),
+                    srcInfo(l, i0 + 1, i0 + 1),
                     "missing variables");
 
         // expr
@@ -210,20 +447,20 @@ class Parser
 
             if (t2.isEmpty())
                 throw new ParseException(
-                        new SrcInfo(l, i0 + 1, i + 1),
+                        srcInfo(l, i0 + 1, i + 1),
                         "expr term is empty");
 
             if (t2.equals("if"))
             {
                 if (et == null)
                     throw new ParseException(
-                            new SrcInfo(l, i0 + 1, i + 1),
+                            srcInfo(l, i0 + 1, i + 1),
                             "unexpected if");
                 no_if = false;
             }
             else
             {
-                var e2 = new VarExpr(t2, new SrcInfo(l, i0 + 1, i));
+                var e2 = new VarExpr(t2, pos(l, i0 + 1, i));
                 et = et == null ? e2 : new AppExpr(et, e2);
             }
 
@@ -248,10 +485,10 @@ class Parser
 
             if (t2.isEmpty())
                 throw new ParseException(
-                        new SrcInfo(l, i0 + 1, i + 1),
+                        srcInfo(l, i0 + 1, i + 1),
                         "expr term is empty");
 
-            var e2 = new VarExpr(t2, new SrcInfo(l, i0 + 1, i));
+            var e2 = new VarExpr(t2, pos(l, i0 + 1, i));
             ec = ec == null ? e2 : new AppExpr(ec, e2);
 
             if (i == line.length())
@@ -268,7 +505,7 @@ class Parser
             line = reader.readLine();
             if (line == null)
                 throw new ParseException(
-                        new SrcInfo(l, i0 + 1, i0 + 1),
+                        srcInfo(l, i0 + 1, i0 + 1),
                         "unexpected end of file");
         }
         catch (java.io.IOException ex)
@@ -288,7 +525,7 @@ class Parser
 
         if (i != i_start)
             throw new ParseException(
-                    new SrcInfo(l, 1, i),
+                    srcInfo(l, 1, i),
                     String.format("indent %d (expected %d)", i, i_start));
 
         i0 = i;
@@ -297,6 +534,16 @@ class Parser
         return new CondExpr(ec, et, ef);
     }
 
+    private SrcInfo srcInfo(int line, int charBegin, int charEnd)
+    {
+        return new SrcInfo(m_file, line, charBegin, charEnd);
+    }
+
+    private long pos(int line, int charBegin, int charEnd)
+    {
+        return SrcInfo.pack(m_file, m_fileIndex, line, charBegin, charEnd);
+    }
+
     private int endOfNextToken()
     {
         var i = i0;
@@ -305,419 +552,2385 @@ class Parser
         return i;
     }
 
+    private final String m_file;
+    private final int m_fileIndex;
     private java.io.LineNumberReader reader;
     String line;
     int i0;
 }
 
-abstract class RootException extends Exception
+// Parses the bindings at indent 0 in parallel: a pre-scan splits the source
+// at lines with indent 0, each of which starts a binding, and runs of them
+// are parsed concurrently on the common fork-join pool. If any chunk fails
+// or two chunks bind the same variable, the whole source is parsed again
+// sequentially so that the error reported is exactly the sequential one.
+class ParallelParser
 {
-    public RootException(String msg)
-    {
-        super(msg);
-    }
+    // sources with fewer lines are not worth splitting; test\test.bat
+    // lowers it so that -parallel splits its small inputs too
+    static final int MIN_CHUNK_LINES = Integer.getInteger("interp.parallel.minChunkLines", 1024);
 
-    public RootException(String msg, Throwable cause)
+    // firstLine and file as for Parser
+    public ParallelParser(java.io.Reader in, int firstLine, String file)
     {
-        super(msg, cause);
-    }
-
-    public abstract SrcInfo srcInfo();
+        m_firstLine = firstLine;
+        m_file = file;
+        m_lines = new java.util.ArrayList<String>();
+        m_starts = new java.util.ArrayList<Integer>();
 
-    public String toString()
-    {
-        return String.format("%s: %s: %s",
-                getClass().getName(),
-                srcInfo(),
-                getMessage());
+        try (var reader = new java.io.BufferedReader(in))
+        {
+            for (;;)
+            {
+                var line = reader.readLine();
+                if (line == null)
+                    break;
+                if (line.isEmpty() || line.charAt(0) != ' ')
+                    m_starts.add(m_lines.size());
+                m_lines.add(line);
+            }
+        }
+        catch (java.io.IOException ex)
+        {
+            m_ioError = ex;
+        }
     }
-}
 
-class ParseException extends RootException
-{
-    public ParseException(SrcInfo srcInfo, String msg)
+    public SrcInfo srcLoc()
     {
-        super(msg);
-        m_srcInfo = srcInfo;
+        return m_last.srcLoc();
     }
 
-    public ParseException(SrcInfo srcInfo, String msg, Throwable cause)
+    public java.util.Map<String, Expr> parseBindings()
+        throws ParseException
     {
-        super(msg, cause);
-        m_srcInfo = srcInfo;
-    }
+        if (m_ioError != null)
+            throw new ParseException(
+                    new SrcInfo(m_file, m_firstLine + m_lines.size(), 1, 1),
+                    "I/O error", m_ioError);
 
-    public SrcInfo srcInfo()
-    {
-        return m_srcInfo;
-    }
+        var chunks = chunks();
+        if (chunks.size() > 1)
+        {
+            var results = chunks.parallelStream()
+                .map(c -> c.parse())
+                .collect(java.util.stream.Collectors.toList());
 
-    private final SrcInfo m_srcInfo;
-}
+            var bindings = new java.util.HashMap<String, Expr>();
+            var ok = true;
+            for (var c : results)
+            {
+                if (c.m_bindings == null)
+                {
+                    ok = false;
+                    break;
+                }
+
+                var n = bindings.size();
+                bindings.putAll(c.m_bindings);
+                if (bindings.size() != n + c.m_bindings.size())
+                {
+                    ok = false;
+                    break;
+                }
+            }
 
-class EvalException extends RootException
-{
-    public EvalException(String msg)
-    {
-        super(msg);
-    }
+            if (ok)
+            {
+                m_last = results.get(results.size() - 1).m_parser;
+                return bindings;
+            }
+        }
 
-    public EvalException(String msg, Expr e)
-    {
-        super(msg);
-        appendExprStack(e);
+        m_last = new Parser(text(0, m_lines.size()), m_firstLine, m_file);
+        return m_last.parseBindings(0);
     }
 
-    /*
-    public EvalException(SrcInfo srcInfo, String msg, Throwable cause)
+    // runs of whole indent 0 bindings, at least MIN_CHUNK_LINES long
+    private java.util.List<Chunk> chunks()
     {
-        super(srcInfo, msg, cause);
+        var chunks = new java.util.ArrayList<Chunk>();
+        var begin = 0;
+        for (var start : m_starts)
+        {
+            if (start - begin >= MIN_CHUNK_LINES)
+            {
+                chunks.add(new Chunk(begin, start));
+                begin = start;
+            }
+        }
+        chunks.add(new Chunk(begin, m_lines.size()));
+        return chunks;
     }
-    */
 
-    public SrcInfo srcInfo()
+    private java.io.Reader text(int begin, int end)
     {
-        return m_expr_stack.get(0).srcInfo();
+        var text = new StringBuilder();
+        for (var line : m_lines.subList(begin, end))
+            text.append(line).append('\n');
+        return new java.io.StringReader(text.toString());
     }
 
-    public void appendExprStack(Expr e)
+    private class Chunk
     {
-        m_expr_stack.add(e);
+        Chunk(int begin, int end)
+        {
+            m_begin = begin;
+            m_end = end;
+        }
+
+        Chunk parse()
+        {
+            m_parser = new Parser(text(m_begin, m_end), m_firstLine + m_begin, m_file);
+            try
+            {
+                m_bindings = m_parser.parseBindings(0);
+            }
+            catch (ParseException ex)
+            {
+                m_bindings = null;
+            }
+            return this;
+        }
+
+        final int m_begin;
+        final int m_end;
+        Parser m_parser;
+        java.util.Map<String, Expr> m_bindings;
     }
 
-    private final java.util.List<Expr> m_expr_stack =
-        new java.util.ArrayList<Expr>();
+    private final int m_firstLine;
+    private final String m_file;
+    private final java.util.List<String> m_lines;
+    private final java.util.List<Integer> m_starts;
+    private java.io.IOException m_ioError;
+    private Parser m_last;
 }
 
-class EnvException extends Exception
+class Inliner
 {
-    public EnvException(String msg)
+    // bodies larger than this (in AST nodes) are never duplicated
+    static final int SIZE_LIMIT = 12;
+
+    public Expr inline(Expr e)
     {
-        super(msg);
+        return rewrite(e, null);
     }
-}
 
-interface Value
-{
-    boolean left();
-    Value apply(Value v)
-        throws EvalException;
-}
+    // rewrites the top-level bindings of a module, none of which is dropped;
+    // imports are the already inlined bindings of the modules it imports.
+    // Unless closed, other modules may bind names unknown here, so none of
+    // them can be taken for a literal.
+    public java.util.Map<String, Expr> inlineModule(
+            java.util.Map<String, Expr> bindings,
+            java.util.Map<String, Expr> imports,
+            boolean closed)
+    {
+        m_closed = closed;
 
-interface Expr
-{
-    public Value evaluate(Env env)
-        throws EvalException;
+        var scope0 = new Scope(null);
+        for (var b : imports.entrySet())
+        {
+            var binding = new Binding(b.getValue(), scope0);
+            binding.m_rewritten = b.getValue();
+            scope0.m_names.put(b.getKey(), binding);
+        }
 
-    // TODO: split out srcInfo
-    public SrcInfo srcInfo();
-}
+        var scope1 = new Scope(scope0);
+        for (var b : bindings.entrySet())
+            scope1.m_names.put(b.getKey(), new Binding(b.getValue(), scope1));
 
-interface Closure
-{
-    public Value evaluate()
-        throws EvalException;
-}
+        // dependencies first, so that inlining a chain of bindings into each
+        // other never nests
+        for (var b : scope1.order())
+            rewritten(b);
 
-interface Env
-{
-    public Closure get(String var)
-        throws EnvException;
-}
+        var rewritten = new java.util.HashMap<String, Expr>();
+        for (var b : scope1.m_names.entrySet())
+            rewritten.put(b.getKey(), rewritten(b.getValue()));
+        return rewritten;
+    }
 
-class SrcInfo
-{
-    // line/char positions start from 1
-    SrcInfo(int line, int charBegin, int charEnd)
+    private Expr rewrite(Expr e, Scope scope)
     {
-        m_line = line;
-        m_charBegin = charBegin;
-        m_charEnd = charEnd;
+        if (e instanceof VarExpr)
+            return rewriteVar((VarExpr)e, scope);
+        else if (e instanceof AppExpr)
+            return rewriteApp((AppExpr)e, scope);
+        else if (e instanceof CondExpr)
+        {
+            var c = (CondExpr)e;
+            var ec = rewrite(c.ec(), scope);
+            var et = rewrite(c.et(), scope);
+            var ef = rewrite(c.ef(), scope);
+            if (ec == c.ec() && et == c.et() && ef == c.ef())
+                return c;
+            return new CondExpr(ec, et, ef, c.srcPos());
+        }
+        else if (e instanceof LambdaExpr)
+        {
+            var l = (LambdaExpr)e;
+            var scope1 = new Scope(scope);
+            scope1.m_names.put(l.var().name(), new Binding(null, scope1));
+            var body = rewrite(l.expr(), scope1);
+            if (body == l.expr())
+                return l;
+            return new LambdaExpr(l.var(), body, l.srcPos());
+        }
+        else if (e instanceof LetrecExpr)
+            return rewriteLetrec((LetrecExpr)e, scope);
+        else
+            return e;
     }
 
-    public SrcInfo composeWith(SrcInfo that)
+    private Expr rewriteVar(VarExpr v, Scope scope)
     {
-        if (this.m_line != that.m_line)
-            throw new RuntimeException(
-                    String.format("line numbers mismatch: %d vs. %d",
-                        this.m_line,
-                        that.m_line));
+        var b = resolve(v.name(), scope);
+        if (b == null || !b.inlinable() || b.arity() != 0)
+            return v;
 
-        if (this.m_charEnd >= that.m_charBegin)
-            throw new RuntimeException(
-                    String.format("overlap: %d vs. %d",
-                        this.m_charEnd,
-                        that.m_charBegin));
+        var body = rewritten(b);
+        if (!sameResolution(freeVars(body), b.m_scope, scope))
+            return v;
 
-        return new SrcInfo(this.m_line, this.m_charBegin, that.m_charEnd);
+        return body;
     }
 
-    public String toString()
+    private Expr rewriteApp(AppExpr app, Scope scope)
     {
-        return String.format("%d(%d-%d)", m_line, m_charBegin, m_charEnd);
-    }
+        // unwind the application spine: head a1 a2 ... an
+        var spine = new java.util.ArrayList<AppExpr>();
+        Expr head = app;
+        while (head instanceof AppExpr)
+        {
+            spine.add((AppExpr)head);
+            head = ((AppExpr)head).e1();
+        }
+        java.util.Collections.reverse(spine);
 
-    private final int m_line;
-    private final int m_charBegin;
-    private final int m_charEnd;
-}
+        Binding b = null;
+        if (head instanceof VarExpr)
+            b = resolve(((VarExpr)head).name(), scope);
 
-class DoubleValue implements Value
-{
-    DoubleValue(double val)
+        Expr e = null;
+        int n = 0;
+        if (b != null && b.inlinable() && b.arity() > 0 && b.arity() <= spine.size())
+        {
+            var lambda = rewritten(b);
+            var params = new java.util.ArrayList<VarExpr>();
+            for (int i = 0; i < b.arity(); i++)
+            {
+                params.add(((LambdaExpr)lambda).var());
+                lambda = ((LambdaExpr)lambda).expr();
+            }
+            var body = lambda;
+
+            var free = freeVars(body);
+            for (var p : params)
+                free.remove(p.name());
+
+            if (sameResolution(free, b.m_scope, scope))
+            {
+                e = inlineCall(params, spine, body, scope);
+                n = b.arity();
+            }
+        }
+
+        // calls to functions of several parameters bind them all at once
+        var call = 0;
+        if (e == null && b != null && b.m_expr != null && b.arity() > 1)
+            call = Math.min(b.arity(), spine.size());
+
+        // only infix uses are fused: the whole spine, and the lhs of a fused
+        // node, but not f - 1 in f - 1 2, which passes - to f
+        var infix = new boolean[spine.size()];
+        infix[spine.size() - 1] = true;
+        for (int i = spine.size() - 1; i >= 2; i--)
+            if (infix[i] && binOp(spine.get(i - 1), scope) != null)
+                infix[i - 2] = true;
+
+        // rebuild the rest of the spine bottom-up, so that a long spine
+        // is walked only once
+        if (e == null)
+            e = rewrite(head, scope);
+        for (int i = n; i < spine.size(); i++)
+        {
+            var a = spine.get(i);
+            var arg = rewrite(a.e2(), scope);
+            var op = infix[i] ? binOp(e, scope) : null;
+            if (op != null)
+                e = new BinaryOpExpr((AppExpr)e, op, arg, a.srcPos());
+            else
+                e = e == a.e1() && arg == a.e2() ? a : new AppExpr(e, arg, a.srcPos());
+
+            if (i == call - 1 && isSpine(e, call))
+                e = new CallExpr((AppExpr)e, call);
+        }
+        return e;
+    }
+
+    // whether e is n plain applications deep, as CallExpr requires; a
+    // fused operator such as f + 1 in f + 1 * 2 is not one
+    private static boolean isSpine(Expr e, int n)
+    {
+        for (int i = 0; i < n; i++, e = ((AppExpr)e).e1())
+            if (!(e instanceof AppExpr))
+                return false;
+        return true;
+    }
+
+    // the operator if e is lhs op, with op a builtin operator
+    private BinOpValue binOp(Expr e, Scope scope)
+    {
+        if (!(e instanceof AppExpr) || !isLiteral(((AppExpr)e).e2(), scope))
+            return null;
+
+        try
+        {
+            var op = SYSTEM_ENV.get(((VarExpr)((AppExpr)e).e2()).name()).evaluate();
+            return op instanceof BinOpValue ? (BinOpValue)op : null;
+        }
+        catch (EnvException | EvalException ex)
+        {
+            return null;
+        }
+    }
+
+    private Expr inlineCall(
+            java.util.List<VarExpr> params,
+            java.util.List<AppExpr> spine,
+            Expr body,
+            Scope scope)
+    {
+        // literal arguments can neither fail nor cost anything to evaluate,
+        // so they are substituted; the rest stay strict value bindings
+        var subst = new java.util.HashMap<String, Expr>();
+        var boundParams = new java.util.ArrayList<VarExpr>();
+        var boundArgs = new java.util.ArrayList<Expr>();
+        for (int i = 0; i < params.size(); i++)
+        {
+            var arg = rewrite(spine.get(i).e2(), scope);
+            var name = params.get(i).name();
+            if (isLiteral(arg, scope) && !subst.containsKey(name))
+                subst.put(name, arg);
+            else
+            {
+                subst.remove(name);
+                boundParams.add(params.get(i));
+                boundArgs.add(arg);
+            }
+        }
+
+        body = substitute(body, subst);
+        var pos = spine.get(params.size() - 1).srcPos();
+        if (boundParams.isEmpty())
+            return body;
+        return new InlinedAppExpr(boundParams, boundArgs, body, pos);
+    }
+
+    private Expr rewriteLetrec(LetrecExpr letrec, Scope scope)
+    {
+        var scope1 = new Scope(scope);
+        for (var b : letrec.bindings().entrySet())
+            scope1.m_names.put(b.getKey(), new Binding(b.getValue(), scope1));
+
+        // dependencies first, as in inlineModule(); the ones left unused are
+        // dropped below
+        for (var b : scope1.order())
+            rewritten(b);
+        var e = rewrite(letrec.expr(), scope1);
+
+        // drop bindings no longer reachable from the body
+        var live = new java.util.HashMap<String, Expr>();
+        var pending = new java.util.ArrayDeque<String>(freeVars(e));
+        while (!pending.isEmpty())
+        {
+            var name = pending.pop();
+            var b = scope1.m_names.get(name);
+            if (b == null || live.containsKey(name))
+                continue;
+
+            var be = rewritten(b);
+            live.put(name, be);
+            pending.addAll(freeVars(be));
+        }
+
+        if (live.isEmpty())
+            return e;
+        return new LetrecExpr(e, live, letrec.srcPos());
+    }
+
+    private Expr rewritten(Binding b)
+    {
+        if (b.m_rewritten == null)
+        {
+            if (b.m_rewriting)
+                throw new RuntimeException("inlining cycle (should not happen)");
+            b.m_rewriting = true;
+            b.m_rewritten = rewrite(b.m_expr, b.m_scope);
+            b.m_rewriting = false;
+        }
+        return b.m_rewritten;
+    }
+
+    private static Binding resolve(String name, Scope scope)
+    {
+        for (var s = scope; s != null; s = s.m_outer)
+        {
+            var b = s.m_names.get(name);
+            if (b != null)
+                return b;
+        }
+        return null;
+    }
+
+    private static boolean sameResolution(
+            java.util.Set<String> names,
+            Scope from,
+            Scope to)
+    {
+        for (var name : names)
+            if (resolve(name, from) != resolve(name, to))
+                return false;
+        return true;
+    }
+
+    private boolean isLiteral(Expr e, Scope scope)
+    {
+        if (!m_closed || !(e instanceof VarExpr))
+            return false;
+
+        var name = ((VarExpr)e).name();
+        if (resolve(name, scope) != null)
+            return false;
+
+        try
+        {
+            SYSTEM_ENV.get(name);
+            return true;
+        }
+        catch (EnvException ex)
+        {
+            return false;
+        }
+    }
+
+    // only applied to binder-free bodies, so no capture is possible
+    private static Expr substitute(Expr e, java.util.Map<String, Expr> subst)
+    {
+        if (subst.isEmpty())
+            return e;
+
+        if (e instanceof VarExpr)
+        {
+            var s = subst.get(((VarExpr)e).name());
+            return s == null ? e : s;
+        }
+        else if (e instanceof AppExpr)
+        {
+            var a = (AppExpr)e;
+            return new AppExpr(
+                    substitute(a.e1(), subst),
+                    substitute(a.e2(), subst),
+                    a.srcPos());
+        }
+        else if (e instanceof CallExpr)
+        {
+            var c = (CallExpr)e;
+            return new CallExpr((AppExpr)substitute(c.app(), subst), c.args().length);
+        }
+        else if (e instanceof BinaryOpExpr)
+        {
+            var b = (BinaryOpExpr)e;
+            var inner = (AppExpr)substitute(b.inner(), subst);
+            return new BinaryOpExpr(
+                    inner,
+                    b.op(),
+                    substitute(b.rhs(), subst),
+                    b.srcPos());
+        }
+        else if (e instanceof CondExpr)
+        {
+            var c = (CondExpr)e;
+            return new CondExpr(
+                    substitute(c.ec(), subst),
+                    substitute(c.et(), subst),
+                    substitute(c.ef(), subst),
+                    c.srcPos());
+        }
+        else
+            throw new RuntimeException("substitution under binder (should not happen)");
+    }
+
+    static java.util.Set<String> freeVars(Expr e)
+    {
+        var free = new java.util.HashSet<String>();
+        collectFreeVars(e, java.util.Set.of(), free);
+        return free;
+    }
+
+    private static void collectFreeVars(
+            Expr e,
+            java.util.Set<String> bound,
+            java.util.Set<String> free)
+    {
+        if (e instanceof VarExpr)
+        {
+            var name = ((VarExpr)e).name();
+            if (!bound.contains(name))
+                free.add(name);
+        }
+        else if (e instanceof AppExpr)
+        {
+            collectFreeVars(((AppExpr)e).e1(), bound, free);
+            collectFreeVars(((AppExpr)e).e2(), bound, free);
+        }
+        else if (e instanceof CallExpr)
+            collectFreeVars(((CallExpr)e).app(), bound, free);
+        else if (e instanceof MemoExpr)
+            collectFreeVars(((MemoExpr)e).body(), bound, free);
+        else if (e instanceof SharedExpr)
+            collectFreeVars(((SharedExpr)e).expr(), bound, free);
+        else if (e instanceof BinaryOpExpr)
+        {
+            collectFreeVars(((BinaryOpExpr)e).inner(), bound, free);
+            collectFreeVars(((BinaryOpExpr)e).rhs(), bound, free);
+        }
+        else if (e instanceof CondExpr)
+        {
+            var c = (CondExpr)e;
+            collectFreeVars(c.ec(), bound, free);
+            collectFreeVars(c.et(), bound, free);
+            collectFreeVars(c.ef(), bound, free);
+        }
+        else if (e instanceof LambdaExpr)
+        {
+            var l = (LambdaExpr)e;
+            var bound1 = new java.util.HashSet<String>(bound);
+            bound1.add(l.var().name());
+            collectFreeVars(l.expr(), bound1, free);
+        }
+        else if (e instanceof LetrecExpr)
+        {
+            var l = (LetrecExpr)e;
+            var bound1 = new java.util.HashSet<String>(bound);
+            bound1.addAll(l.bindings().keySet());
+            collectFreeVars(l.expr(), bound1, free);
+            for (var b : l.bindings().values())
+                collectFreeVars(b, bound1, free);
+        }
+        else if (e instanceof InlinedAppExpr)
+        {
+            var i = (InlinedAppExpr)e;
+            for (var a : i.args())
+                collectFreeVars(a, bound, free);
+            var bound1 = new java.util.HashSet<String>(bound);
+            for (var p : i.params())
+                bound1.add(p.name());
+            collectFreeVars(i.body(), bound1, free);
+        }
+    }
+
+    private static int size(Expr e)
+    {
+        if (e instanceof AppExpr)
+            return 1 + size(((AppExpr)e).e1()) + size(((AppExpr)e).e2());
+        else if (e instanceof CallExpr)
+            return size(((CallExpr)e).app());
+        else if (e instanceof MemoExpr)
+            return size(((MemoExpr)e).body());
+        else if (e instanceof SharedExpr)
+            return size(((SharedExpr)e).expr());
+        else if (e instanceof BinaryOpExpr)
+            return 2 + size(((BinaryOpExpr)e).lhs()) + size(((BinaryOpExpr)e).rhs());
+        else if (e instanceof CondExpr)
+        {
+            var c = (CondExpr)e;
+            return 1 + size(c.ec()) + size(c.et()) + size(c.ef());
+        }
+        else if (e instanceof LambdaExpr)
+            return 1 + size(((LambdaExpr)e).expr());
+        else if (e instanceof LetrecExpr)
+        {
+            var l = (LetrecExpr)e;
+            var n = 1 + size(l.expr());
+            for (var b : l.bindings().values())
+                n += size(b);
+            return n;
+        }
+        else if (e instanceof InlinedAppExpr)
+        {
+            var i = (InlinedAppExpr)e;
+            var n = 1 + size(i.body());
+            for (var a : i.args())
+                n += size(a);
+            return n;
+        }
+        else
+            return 1;
+    }
+
+    private static boolean binderFree(Expr e)
+    {
+        if (e instanceof VarExpr)
+            return true;
+        else if (e instanceof AppExpr)
+            return binderFree(((AppExpr)e).e1()) && binderFree(((AppExpr)e).e2());
+        else if (e instanceof CallExpr)
+            return binderFree(((CallExpr)e).app());
+        else if (e instanceof BinaryOpExpr)
+            return binderFree(((BinaryOpExpr)e).lhs()) && binderFree(((BinaryOpExpr)e).rhs());
+        else if (e instanceof CondExpr)
+        {
+            var c = (CondExpr)e;
+            return binderFree(c.ec()) && binderFree(c.et()) && binderFree(c.ef());
+        }
+        else
+            return false;
+    }
+
+    private static class Scope
+    {
+        Scope(Scope outer)
+        {
+            m_outer = outer;
+        }
+
+        // the bindings, dependencies first: the strongly connected
+        // components of the graph of their references to each other, as
+        // Tarjan's algorithm finds them, which also sets Binding.m_recursive.
+        // Computed once, after m_names is filled in; without recursion, since
+        // a generated scope may hold a chain of thousands of bindings.
+        java.util.List<Binding> order()
+        {
+            if (m_order != null)
+                return m_order;
+
+            m_order = new java.util.ArrayList<Binding>();
+            var index = 0;
+            var stack = new java.util.ArrayDeque<Binding>();
+            var visiting = new java.util.ArrayDeque<Binding>();
+            for (var b0 : m_names.values())
+            {
+                if (b0.m_index >= 0)
+                    continue;
+
+                b0.m_index = b0.m_low = index++;
+                stack.push(b0);
+                b0.m_onStack = true;
+                visiting.push(b0);
+                while (!visiting.isEmpty())
+                {
+                    var b = visiting.peek();
+                    var deps = b.deps();
+                    if (b.m_next < deps.size())
+                    {
+                        var d = deps.get(b.m_next++);
+                        if (d == b)
+                            b.m_recursive = true;
+                        if (d.m_index < 0)
+                        {
+                            d.m_index = d.m_low = index++;
+                            stack.push(d);
+                            d.m_onStack = true;
+                            visiting.push(d);
+                        }
+                        else if (d.m_onStack)
+                            b.m_low = Math.min(b.m_low, d.m_index);
+                        continue;
+                    }
+
+                    visiting.pop();
+                    if (!visiting.isEmpty())
+                        visiting.peek().m_low = Math.min(visiting.peek().m_low, b.m_low);
+                    if (b.m_low != b.m_index)
+                        continue;
+
+                    var first = m_order.size();
+                    Binding c;
+                    do
+                    {
+                        c = stack.pop();
+                        c.m_onStack = false;
+                        m_order.add(c);
+                    }
+                    while (c != b);
+                    if (m_order.size() - first > 1)
+                        for (int i = first; i < m_order.size(); i++)
+                            m_order.get(i).m_recursive = true;
+                }
+            }
+            return m_order;
+        }
+
+        final java.util.Map<String, Binding> m_names =
+            new java.util.HashMap<String, Binding>();
+        final Scope m_outer;
+        private java.util.List<Binding> m_order;
+    }
+
+    private class Binding
+    {
+        // m_expr is null for lambda parameters
+        Binding(Expr expr, Scope scope)
+        {
+            m_expr = expr;
+            m_scope = scope;
+        }
+
+        int arity()
+        {
+            var n = 0;
+            for (var e = m_expr; e instanceof LambdaExpr; e = ((LambdaExpr)e).expr())
+                n++;
+            return n;
+        }
+
+        boolean inlinable()
+        {
+            if (m_expr == null || recursive())
+                return false;
+
+            var e = rewritten(this);
+            if (size(e) > SIZE_LIMIT)
+                return false;
+
+            // lambda bodies get their parameters substituted
+            if (arity() > 0)
+            {
+                for (int i = 0; i < arity(); i++)
+                    e = ((LambdaExpr)e).expr();
+                return binderFree(e);
+            }
+
+            return true;
+        }
+
+        // a binding is recursive if it can reach itself through its siblings
+        boolean recursive()
+        {
+            m_scope.order();
+            return m_recursive;
+        }
+
+        private java.util.List<Binding> deps()
+        {
+            if (m_deps == null)
+            {
+                m_deps = new java.util.ArrayList<Binding>();
+                if (m_expr == null)
+                    return m_deps;
+                for (var name : freeVars(m_expr))
+                {
+                    var b = m_scope.m_names.get(name);
+                    if (b != null)
+                        m_deps.add(b);
+                }
+            }
+            return m_deps;
+        }
+
+        final Expr m_expr;
+        final Scope m_scope;
+        java.util.List<Binding> m_deps;
+
+        // set by Scope.order()
+        boolean m_recursive;
+        int m_index = -1;
+        int m_low;
+        int m_next;
+        boolean m_onStack;
+
+        boolean m_rewriting;
+        Expr m_rewritten;
+    }
+
+    private boolean m_closed = true;
+
+    private static final Env SYSTEM_ENV = new SystemEnv();
+}
+
+// Shares what structurally equal subexpressions of a module have in common,
+// after Inliner has duplicated small bindings into their uses:
+//
+// - A region is an expression evaluated in a single environment, down to the
+//   binders nested in it. A subexpression occurring more than once in a
+//   region is evaluated once per evaluation of the region, by whichever
+//   occurrence comes first, into a slot of the MemoEnv of the region. The
+//   first occurrence evaluates its own nodes, so an error is reported at the
+//   same position as it would be without sharing. Letrec bindings are
+//   evaluated by name, so repeated references to one are shared as well,
+//   unless it is a function, which evaluates to a closure in one step.
+// - Nodes whose position can never be reported, i.e. bound variables and
+//   literals, are hash-consed into one node each.
+// - A node Inliner copied into several places stays one node where its
+//   rewrite needs no slot, and one node per region where it does.
+class Cse
+{
+    public Expr rewrite(Expr e)
+    {
+        return region(e, null);
+    }
+
+    // the top-level bindings of a module, each a region of its own; visible
+    // are the top-level bindings visible to them, those of imports included
+    public java.util.Map<String, Expr> rewriteModule(
+            java.util.Map<String, Expr> bindings,
+            java.util.Map<String, Expr> visible)
+    {
+        var scope = new Scope(null);
+        for (var b : visible.entrySet())
+            scope.m_names.put(b.getKey(), new Binder(b.getValue()));
+
+        var rewritten = new java.util.HashMap<String, Expr>();
+        for (var b : bindings.entrySet())
+            rewritten.put(b.getKey(), region(b.getValue(), scope));
+        return rewritten;
+    }
+
+    // subexpressions given a slot
+    public int shared()
+    {
+        return m_shared;
+    }
+
+    // {tree size, distinct nodes} of e, to report the effect of hash-consing
+    public static int[] count(Expr e)
+    {
+        var counts = new int[2];
+        var seen = java.util.Collections.newSetFromMap(new java.util.IdentityHashMap<Expr, Boolean>());
+        var pending = new java.util.ArrayDeque<Expr>();
+        pending.push(e);
+        while (!pending.isEmpty())
+        {
+            var e1 = pending.pop();
+            counts[0]++;
+            if (seen.add(e1))
+                counts[1]++;
+
+            if (e1 instanceof AppExpr)
+            {
+                pending.push(((AppExpr)e1).e1());
+                pending.push(((AppExpr)e1).e2());
+            }
+            else if (e1 instanceof BinaryOpExpr)
+            {
+                pending.push(((BinaryOpExpr)e1).inner());
+                pending.push(((BinaryOpExpr)e1).rhs());
+            }
+            else if (e1 instanceof CallExpr)
+                pending.push(((CallExpr)e1).app());
+            else if (e1 instanceof CondExpr)
+            {
+                pending.push(((CondExpr)e1).ec());
+                pending.push(((CondExpr)e1).et());
+                pending.push(((CondExpr)e1).ef());
+            }
+            else if (e1 instanceof LambdaExpr)
+            {
+                pending.push(((LambdaExpr)e1).var());
+                pending.push(((LambdaExpr)e1).expr());
+            }
+            else if (e1 instanceof LetrecExpr)
+            {
+                pending.push(((LetrecExpr)e1).expr());
+                pending.addAll(((LetrecExpr)e1).bindings().values());
+            }
+            else if (e1 instanceof InlinedAppExpr)
+            {
+                pending.addAll(((InlinedAppExpr)e1).params());
+                pending.addAll(((InlinedAppExpr)e1).args());
+                pending.push(((InlinedAppExpr)e1).body());
+            }
+            else if (e1 instanceof MemoExpr)
+                pending.push(((MemoExpr)e1).body());
+            else if (e1 instanceof SharedExpr)
+                pending.push(((SharedExpr)e1).expr());
+        }
+        return counts;
+    }
+
+    private Expr region(Expr e, Scope scope)
+    {
+        var r = new Region();
+        number(e, scope, r);
+        e = rewrite(e, scope, r);
+        if (r.m_slots.isEmpty())
+            return e;
+
+        m_shared += r.m_slots.size();
+        return new MemoExpr(e, r.m_slots.size());
+    }
+
+    // gives e and the nodes of the region below it a number, equal for
+    // structurally equal subexpressions, and counts their occurrences
+    private int number(Expr e, Scope scope, Region r)
+    {
+        // a left spine is as long as a line, so it is walked iteratively
+        var spine = spine(e);
+        var id = numberNode(spine.isEmpty() ? e : left(spine.get(spine.size() - 1)), scope, r);
+        for (int i = spine.size() - 1; i >= 0; i--)
+        {
+            var node = spine.get(i);
+            var rhs = number(right(node), scope, r);
+            var key = node instanceof AppExpr
+                ? new Key(APP, id, rhs)
+                : new Key(BINARY_OP, ((BinaryOpExpr)node).op().op().ordinal(), id, rhs);
+            id = assign(node, key, r);
+        }
+        return id;
+    }
+
+    private int numberNode(Expr e, Scope scope, Region r)
+    {
+        Key key = null;
+        if (e instanceof VarExpr)
+        {
+            var token = token(((VarExpr)e).name(), scope);
+            if (token != null)
+                key = new Key(VAR, r.m_tokens.computeIfAbsent(token, t -> r.m_tokens.size()));
+        }
+        else if (e instanceof CallExpr)
+        {
+            var c = (CallExpr)e;
+            var k = new int[2 + c.args().length];
+            k[0] = CALL;
+            k[1] = number(c.fn(), scope, r);
+            for (int i = 0; i < c.args().length; i++)
+                k[2 + i] = number(c.args()[i], scope, r);
+            key = new Key(k);
+        }
+        else if (e instanceof CondExpr)
+        {
+            var c = (CondExpr)e;
+            key = new Key(COND, number(c.ec(), scope, r), number(c.et(), scope, r), number(c.ef(), scope, r));
+        }
+        else if (e instanceof InlinedAppExpr)
+        {
+            // the arguments belong to the region, the body does not
+            for (var arg : ((InlinedAppExpr)e).args())
+                number(arg, scope, r);
+        }
+
+        // anything else binds names, and is never equal to anything
+        return assign(e, key, r);
+    }
+
+    private static int assign(Expr e, Key key, Region r)
+    {
+        Integer id = key == null ? null : r.m_keys.get(key);
+        if (id == null)
+        {
+            id = r.m_counts.size();
+            r.m_counts.add(0);
+            if (key != null)
+                r.m_keys.put(key, id);
+        }
+        r.m_counts.set(id, r.m_counts.get(id) + 1);
+        r.m_ids.put(e, id);
+        return id;
+    }
+
+    // a node Inliner shares is rewritten once, so that it stays shared
+    private Expr rewrite(Expr e, Scope scope, Region r)
+    {
+        // the left spine, down to a node rewritten already
+        var spine = new java.util.ArrayList<Expr>();
+        var e1 = r.m_rewritten.get(e);
+        for (; e1 == null && (e instanceof AppExpr || e instanceof BinaryOpExpr); e1 = r.m_rewritten.get(e))
+        {
+            spine.add(e);
+            e = left(e);
+        }
+        if (e1 == null)
+        {
+            e1 = share(e, canonical(e, rebuild(e, scope, r)), r);
+            r.m_rewritten.put(e, e1);
+        }
+
+        for (int i = spine.size() - 1; i >= 0; i--)
+        {
+            var node = spine.get(i);
+            var rhs = rewrite(right(node), scope, r);
+            Expr node1;
+            if (node instanceof AppExpr)
+            {
+                var a = (AppExpr)node;
+                node1 = e1 == a.e1() && rhs == a.e2() ? a : new AppExpr(e1, rhs, a.srcPos());
+            }
+            else
+            {
+                var b = (BinaryOpExpr)node;
+                var op = intern((VarExpr)b.inner().e2(), scope);
+                if (e1 != b.lhs() || op != b.inner().e2() || rhs != b.rhs())
+                    b = new BinaryOpExpr(new AppExpr(e1, op, b.inner().srcPos()), b.op(), rhs, b.srcPos());
+                node1 = b;
+            }
+            e1 = share(node, canonical(node, node1), r);
+            r.m_rewritten.put(node, e1);
+        }
+        return e1;
+    }
+
+    // a rewrite of e that uses no slot is the same in every region, so the
+    // regions of the bindings Inliner copied e into share the first one; e
+    // itself is left out, as its children rewrite to themselves everywhere,
+    // and so are variables, which intern() makes one node already
+    private Expr canonical(Expr e, Expr e1)
+    {
+        if (!childrenFree(e1))
+        {
+            m_bound.add(e1);
+            return e1;
+        }
+        if (e1 == e || e instanceof VarExpr)
+            return e1;
+
+        var c = m_canonical.putIfAbsent(e, e1);
+        return c != null ? c : e1;
+    }
+
+    private boolean childrenFree(Expr e1)
+    {
+        if (e1 instanceof AppExpr)
+            return free(((AppExpr)e1).e1()) && free(((AppExpr)e1).e2());
+        else if (e1 instanceof BinaryOpExpr)
+            return free(((BinaryOpExpr)e1).lhs()) && free(((BinaryOpExpr)e1).rhs());
+        else if (e1 instanceof CallExpr)
+        {
+            var c = (CallExpr)e1;
+            var free = free(c.fn());
+            for (var arg : c.args())
+                free &= free(arg);
+            return free;
+        }
+        else if (e1 instanceof CondExpr)
+        {
+            var c = (CondExpr)e1;
+            return free(c.ec()) && free(c.et()) && free(c.ef());
+        }
+        else if (e1 instanceof InlinedAppExpr)
+        {
+            var free = true;
+            for (var arg : ((InlinedAppExpr)e1).args())
+                free &= free(arg);
+            return free;
+        }
+
+        // the slots of anything that binds names are its own
+        return true;
+    }
+
+    private boolean free(Expr e1)
+    {
+        return !(e1 instanceof SharedExpr) && !m_bound.contains(e1);
+    }
+
+    // the application and operator nodes down the left of e, outermost first
+    private static java.util.List<Expr> spine(Expr e)
+    {
+        var spine = new java.util.ArrayList<Expr>();
+        for (; e instanceof AppExpr || e instanceof BinaryOpExpr; e = left(e))
+            spine.add(e);
+        return spine;
+    }
+
+    private static Expr left(Expr e)
+    {
+        return e instanceof AppExpr ? ((AppExpr)e).e1() : ((BinaryOpExpr)e).lhs();
+    }
+
+    private static Expr right(Expr e)
+    {
+        return e instanceof AppExpr ? ((AppExpr)e).e2() : ((BinaryOpExpr)e).rhs();
+    }
+
+    // e1, rebuilt from e, or a shared occurrence of it
+    private Expr share(Expr e, Expr e1, Region r)
+    {
+        if (e instanceof VarExpr ? !m_byName.contains(e1)
+                : !(e instanceof AppExpr || e instanceof BinaryOpExpr || e instanceof CallExpr || e instanceof CondExpr))
+            return e1;
+
+        int id = r.m_ids.get(e);
+        if (r.m_counts.get(id) < 2)
+            return e1;
+
+        var slot = r.m_slots.get(id);
+        if (slot == null)
+        {
+            slot = r.m_slots.size();
+            r.m_slots.put(id, slot);
+        }
+        return new SharedExpr(slot, e1);
+    }
+
+    // e, other than an application or operator node, with its children
+    // rewritten
+    private Expr rebuild(Expr e, Scope scope, Region r)
+    {
+        if (e instanceof VarExpr)
+            return intern((VarExpr)e, scope);
+        else if (e instanceof CallExpr)
+        {
+            var c = (CallExpr)e;
+            var apps = new java.util.ArrayList<AppExpr>();
+            for (Expr a = c.app(); apps.size() < c.args().length; a = ((AppExpr)a).e1())
+                apps.add((AppExpr)a);
+            java.util.Collections.reverse(apps);
+
+            var fn = rewrite(c.fn(), scope, r);
+            var changed = fn != c.fn();
+            Expr app = fn;
+            for (var a : apps)
+            {
+                var arg = rewrite(a.e2(), scope, r);
+                changed |= arg != a.e2();
+                app = new AppExpr(app, arg, a.srcPos());
+            }
+            return changed ? new CallExpr((AppExpr)app, apps.size()) : c;
+        }
+        else if (e instanceof CondExpr)
+        {
+            var c = (CondExpr)e;
+            var ec = rewrite(c.ec(), scope, r);
+            var et = rewrite(c.et(), scope, r);
+            var ef = rewrite(c.ef(), scope, r);
+            if (ec == c.ec() && et == c.et() && ef == c.ef())
+                return c;
+            return new CondExpr(ec, et, ef, c.srcPos());
+        }
+        else if (e instanceof LambdaExpr)
+        {
+            var chain = new java.util.ArrayList<LambdaExpr>();
+            Expr body = e;
+            var scope1 = scope;
+            while (body instanceof LambdaExpr)
+            {
+                var l = (LambdaExpr)body;
+                chain.add(l);
+                scope1 = new Scope(scope1);
+                scope1.m_names.put(l.var().name(), new Binder(null));
+                body = l.expr();
+            }
+
+            var body1 = region(body, scope1);
+            if (body1 == body)
+                return e;
+            for (int i = chain.size() - 1; i >= 0; i--)
+                body1 = new LambdaExpr(chain.get(i).var(), body1, chain.get(i).srcPos());
+            return body1;
+        }
+        else if (e instanceof LetrecExpr)
+        {
+            var l = (LetrecExpr)e;
+            var scope1 = new Scope(scope);
+            for (var name : l.bindings().keySet())
+                scope1.m_names.put(name, new Binder(l.bindings().get(name)));
+
+            var bindings = new java.util.HashMap<String, Expr>();
+            for (var b : l.bindings().entrySet())
+                bindings.put(b.getKey(), region(b.getValue(), scope1));
+            return new LetrecExpr(region(l.expr(), scope1), bindings, l.srcPos());
+        }
+        else if (e instanceof InlinedAppExpr)
+        {
+            var call = (InlinedAppExpr)e;
+            var args = new java.util.ArrayList<Expr>();
+            for (var arg : call.args())
+                args.add(rewrite(arg, scope, r));
+
+            // bound one after the other, like nested lambdas
+            var scope1 = scope;
+            for (var p : call.params())
+            {
+                scope1 = new Scope(scope1);
+                scope1.m_names.put(p.name(), new Binder(null));
+            }
+            return new InlinedAppExpr(call.params(), args, region(call.body(), scope1), call.srcPos());
+        }
+        else
+            return e;
+    }
+
+    // one node per binding or literal; unbound variables keep their position
+    private VarExpr intern(VarExpr v, Scope scope)
+    {
+        var token = token(v.name(), scope);
+        if (token == null)
+            return v;
+
+        var v1 = m_vars.putIfAbsent(token, v);
+        if (v1 != null)
+            return v1;
+        if (token instanceof Binder && ((Binder)token).m_byName)
+            m_byName.add(v);
+        return v;
+    }
+
+    // a binder, the name of a literal, or null if unbound
+    private Object token(String name, Scope scope)
+    {
+        for (var s = scope; s != null; s = s.m_outer)
+        {
+            var t = s.m_names.get(name);
+            if (t != null)
+                return t;
+        }
+        return literal(name) != null ? name : null;
+    }
+
+    // looked up once per name, as a name that is not one throws
+    private Value literal(String name)
+    {
+        if (m_literalValues.containsKey(name))
+            return m_literalValues.get(name);
+
+        Value v;
+        try
+        {
+            v = SYSTEM_ENV.get(name).evaluate();
+        }
+        catch (EnvException | EvalException ex)
+        {
+            v = null;
+        }
+        m_literalValues.put(name, v);
+        return v;
+    }
+
+    private static class Scope
+    {
+        Scope(Scope outer)
+        {
+            m_outer = outer;
+        }
+
+        final Scope m_outer;
+        final java.util.Map<String, Object> m_names = new java.util.HashMap<String, Object>();
+    }
+
+    // the token of a bound name; expr is the value of a letrec binding, which
+    // is evaluated by name, and null for parameters, which are bound to values
+    private static class Binder
+    {
+        Binder(Expr expr)
+        {
+            m_byName = expr != null && !(expr instanceof LambdaExpr);
+        }
+
+        final boolean m_byName;
+    }
+
+    // the kind of a node and the numbers of its children, see number()
+    private static final class Key
+    {
+        Key(int... parts)
+        {
+            m_parts = parts;
+            m_hash = java.util.Arrays.hashCode(parts);
+        }
+
+        public boolean equals(Object o)
+        {
+            return o instanceof Key && java.util.Arrays.equals(m_parts, ((Key)o).m_parts);
+        }
+
+        public int hashCode()
+        {
+            return m_hash;
+        }
+
+        private final int[] m_parts;
+        private final int m_hash;
+    }
+
+    private static final int VAR = 0;
+    private static final int APP = 1;
+    private static final int BINARY_OP = 2;
+    private static final int CALL = 3;
+    private static final int COND = 4;
+
+    private static class Region
+    {
+        final java.util.Map<Object, Integer> m_tokens = new java.util.HashMap<Object, Integer>();
+        final java.util.Map<Key, Integer> m_keys = new java.util.HashMap<Key, Integer>();
+        final java.util.List<Integer> m_counts = new java.util.ArrayList<Integer>();
+        final java.util.Map<Expr, Integer> m_ids = new java.util.IdentityHashMap<Expr, Integer>();
+        final java.util.Map<Integer, Integer> m_slots = new java.util.HashMap<Integer, Integer>();
+        final java.util.Map<Expr, Expr> m_rewritten = new java.util.IdentityHashMap<Expr, Expr>();
+    }
+
+    private int m_shared;
+    private final java.util.Map<Object, VarExpr> m_vars = new java.util.HashMap<Object, VarExpr>();
+    private final java.util.Set<Expr> m_byName =
+        java.util.Collections.newSetFromMap(new java.util.IdentityHashMap<Expr, Boolean>());
+    private final java.util.Map<Expr, Expr> m_canonical = new java.util.IdentityHashMap<Expr, Expr>();
+    // rewritten nodes that use a slot of their region
+    private final java.util.Set<Expr> m_bound =
+        java.util.Collections.newSetFromMap(new java.util.IdentityHashMap<Expr, Boolean>());
+    private final java.util.Map<String, Value> m_literalValues = new java.util.HashMap<String, Value>();
+
+    private static final Env SYSTEM_ENV = new SystemEnv();
+}
+
+abstract class RootException extends Exception
+{
+    public RootException(String msg)
+    {
+        super(msg);
+    }
+
+    public RootException(String msg, Throwable cause)
+    {
+        super(msg, cause);
+    }
+
+    // without a stack trace, and a message only if getMessage() is overridden
+    protected RootException()
+    {
+        super(null, null, false, false);
+    }
+
+    public abstract SrcInfo srcInfo();
+
+    public String toString()
+    {
+        return String.format("%s: %s: %s",
+                getClass().getName(),
+                srcInfo(),
+                getMessage());
+    }
+
+    private static final long serialVersionUID = 1L;
+}
+
+class ParseException extends RootException
+{
+    public ParseException(SrcInfo srcInfo, String msg)
+    {
+        super(msg);
+        m_srcInfo = srcInfo;
+    }
+
+    public ParseException(SrcInfo srcInfo, String msg, Throwable cause)
+    {
+        super(msg, cause);
+        m_srcInfo = srcInfo;
+    }
+
+    public SrcInfo srcInfo()
+    {
+        return m_srcInfo;
+    }
+
+    private final SrcInfo m_srcInfo;
+
+    private static final long serialVersionUID = 1L;
+}
+
+// Invalid programs are as common as valid ones, and an error may unwind a
+// deep recursion, so an EvalException is cheap to throw: it has no Java
+// stack trace, its message is formatted from format and args when first
+// asked for, and it keeps the innermost TRACE_LIMIT expressions it is
+// thrown through and only counts the others.
+class EvalException extends RootException
+{
+    public EvalException(String format, Object... args)
+    {
+        m_format = format;
+        m_args = args;
+    }
+
+    public EvalException(Expr e, String format, Object... args)
+    {
+        this(format, args);
+        appendExprStack(e);
+    }
+
+    public EvalException(Expr e, EnvException ex)
+    {
+        this(e, ex.m_format, ex.m_args);
+    }
+
+    /*
+    public EvalException(SrcInfo srcInfo, String msg, Throwable cause)
+    {
+        super(srcInfo, msg, cause);
+    }
+    */
+
+    public String getMessage()
+    {
+        if (m_msg == null)
+            m_msg = String.format(m_format, m_args);
+        return m_msg;
+    }
+
+    public SrcInfo srcInfo()
+    {
+        return m_depth == 0 ? null : m_exprStack[0].srcInfo();
+    }
+
+    public void appendExprStack(Expr e)
+    {
+        if (m_depth < TRACE_LIMIT)
+        {
+            if (m_exprStack == null)
+                m_exprStack = new Expr[TRACE_LIMIT];
+            m_exprStack[m_depth] = e;
+        }
+        m_depth++;
+    }
+
+    // the expressions thrown through, innermost first, up to TRACE_LIMIT
+    public java.util.List<Expr> exprStack()
+    {
+        if (m_depth == 0)
+            return java.util.List.of();
+        return java.util.Arrays.asList(m_exprStack).subList(0, Math.min(m_depth, TRACE_LIMIT));
+    }
+
+    // the number of expressions thrown through
+    public int depth()
+    {
+        return m_depth;
+    }
+
+    static final int TRACE_LIMIT = 16;
+
+    private final String m_format;
+    private final Object[] m_args;
+    private String m_msg;
+    private Expr[] m_exprStack;
+    private int m_depth;
+
+    private static final long serialVersionUID = 1L;
+}
+
+// only ever caught by VarExpr, which turns it into an EvalException
+class EnvException extends Exception
+{
+    public EnvException(String format, Object... args)
+    {
+        super(null, null, false, false);
+        m_format = format;
+        m_args = args;
+    }
+
+    public String getMessage()
+    {
+        return String.format(m_format, m_args);
+    }
+
+    final String m_format;
+    final Object[] m_args;
+
+    private static final long serialVersionUID = 1L;
+}
+
+interface Value
+{
+    boolean left();
+    Value apply(Value v)
+        throws EvalException;
+}
+
+interface Expr
+{
+    public Value evaluate(Env env)
+        throws EvalException;
+
+    // TODO: split out srcInfo
+    public SrcInfo srcInfo();
+
+    // srcInfo() packed, see SrcInfo.pack()
+    public long srcPos();
+}
+
+interface Closure
+{
+    public Value evaluate()
+        throws EvalException;
+}
+
+interface Env
+{
+    public Closure get(String var)
+        throws EnvException;
+}
+
+class SrcInfo
+{
+    // line/char positions start from 1
+    SrcInfo(int line, int charBegin, int charEnd)
+    {
+        this(null, line, charBegin, charEnd);
+    }
+
+    // file is null for the main source file
+    SrcInfo(String file, int line, int charBegin, int charEnd)
+    {
+        m_file = file;
+        m_line = line;
+        m_charBegin = charBegin;
+        m_charEnd = charEnd;
+    }
+
+    public SrcInfo composeWith(SrcInfo that)
+    {
+        if (this.m_line != that.m_line)
+            throw new RuntimeException(
+                    String.format("line numbers mismatch: %d vs. %d",
+                        this.m_line,
+                        that.m_line));
+
+        if (this.m_charEnd >= that.m_charBegin)
+            throw new RuntimeException(
+                    String.format("overlap: %d vs. %d",
+                        this.m_charEnd,
+                        that.m_charBegin));
+
+        return new SrcInfo(this.m_file, this.m_line, this.m_charBegin, that.m_charEnd);
+    }
+
+    // AST nodes keep their position packed into a long rather than as a
+    // SrcInfo:
+    //
+    //     file (11 bits) | line (22) | charBegin (15) | charEnd (15)
+    //
+    // where file indexes s_files, 0 being the main source file. Positions
+    // that do not fit are kept in s_overflow, packed as -1 - index.
+    //
+    // Both tables live as long as the process and are shared by every
+    // compilation, so each holds a file or a position once and is bounded.
+    // A position that fits neither throws a LimitException rather than
+    // being reported wrongly later; compiling a module turns it into a
+    // ParseException.
+    //
+    // fileIndex is fileIndex(file)
+    static long pack(String file, int fileIndex, int line, int charBegin, int charEnd)
+    {
+        if (fileIndex >= 0 && line < (1 << 22)
+                && charBegin < (1 << 15) && charEnd < (1 << 15)
+                && line >= 0 && charBegin >= 0 && charEnd >= 0)
+            return ((long)fileIndex << 52) | ((long)line << 30) | ((long)charBegin << 15) | charEnd;
+
+        var s = new SrcInfo(file, line, charBegin, charEnd);
+        synchronized (s_overflow)
+        {
+            var i = s_overflowIndex.get(s);
+            if (i == null && s_overflow.size() < MAX_OVERFLOW)
+            {
+                i = s_overflow.size();
+                s_overflow.add(s);
+                s_overflowIndex.put(s, i);
+            }
+            if (i != null)
+                return -1 - i;
+        }
+
+        throw new LimitException(s);
+    }
+
+    static long pack(SrcInfo s)
+    {
+        return pack(s.m_file, fileIndex(s.m_file), s.m_line, s.m_charBegin, s.m_charEnd);
+    }
+
+    static SrcInfo unpack(long pos)
+    {
+        if (pos < 0)
+        {
+            synchronized (s_overflow)
+            {
+                return s_overflow.get((int)(-1 - pos));
+            }
+        }
+
+        String file;
+        synchronized (s_files)
+        {
+            file = s_files.get((int)(pos >>> 52));
+        }
+
+        return new SrcInfo(
+                file,
+                (int)(pos >>> 30) & ((1 << 22) - 1),
+                (int)(pos >>> 15) & ((1 << 15) - 1),
+                (int)pos & ((1 << 15) - 1));
+    }
+
+    // unpack(a).composeWith(unpack(b)), packed
+    static long compose(long a, long b)
+    {
+        if (a < 0 || b < 0 || (a >>> 30) != (b >>> 30)
+                || (a & ((1 << 15) - 1)) >= ((b >>> 15) & ((1 << 15) - 1)))
+            return pack(unpack(a).composeWith(unpack(b)));
+
+        return (a & ~((1L << 15) - 1)) | (b & ((1 << 15) - 1));
+    }
+
+    // -1 once s_files is full
+    static int fileIndex(String file)
+    {
+        if (file == null)
+            return 0;
+
+        synchronized (s_files)
+        {
+            var i = s_fileIndex.get(file);
+            if (i == null)
+            {
+                if (s_files.size() == MAX_FILES)
+                    return -1;
+                i = s_files.size();
+                s_files.add(file);
+                s_fileIndex.put(file, i);
+            }
+            return i;
+        }
+    }
+
+    public boolean equals(Object o)
+    {
+        if (!(o instanceof SrcInfo))
+            return false;
+        var that = (SrcInfo)o;
+        return java.util.Objects.equals(this.m_file, that.m_file)
+            && this.m_line == that.m_line
+            && this.m_charBegin == that.m_charBegin
+            && this.m_charEnd == that.m_charEnd;
+    }
+
+    public int hashCode()
+    {
+        return java.util.Objects.hash(m_file, m_line, m_charBegin, m_charEnd);
+    }
+
+    public String file()
+    {
+        return m_file;
+    }
+
+    public int line()
+    {
+        return m_line;
+    }
+
+    public int charBegin()
+    {
+        return m_charBegin;
+    }
+
+    public int charEnd()
+    {
+        return m_charEnd;
+    }
+
+    public String toString()
+    {
+        if (m_file != null)
+            return String.format("%s:%d(%d-%d)", m_file, m_line, m_charBegin, m_charEnd);
+        return String.format("%d(%d-%d)", m_line, m_charBegin, m_charEnd);
+    }
+
+    // a position pack() has no room for
+    static class LimitException extends RuntimeException
+    {
+        LimitException(SrcInfo srcInfo)
+        {
+            super("too many source positions or files");
+            m_srcInfo = srcInfo;
+        }
+
+        ParseException toParseException()
+        {
+            return new ParseException(m_srcInfo, getMessage());
+        }
+
+        private final SrcInfo m_srcInfo;
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private final String m_file;
+    private final int m_line;
+    private final int m_charBegin;
+    private final int m_charEnd;
+
+    private static final int MAX_FILES = 1 << 11;
+    private static final int MAX_OVERFLOW = 1 << 16;
+
+    // s_fileIndex is guarded by s_files, s_overflowIndex by s_overflow
+    private static final java.util.List<String> s_files =
+        new java.util.ArrayList<String>(java.util.Collections.singletonList(null));
+    private static final java.util.Map<String, Integer> s_fileIndex =
+        new java.util.HashMap<String, Integer>();
+    private static final java.util.List<SrcInfo> s_overflow =
+        new java.util.ArrayList<SrcInfo>();
+    private static final java.util.Map<SrcInfo, Integer> s_overflowIndex =
+        new java.util.HashMap<SrcInfo, Integer>();
+}
+
+class DoubleValue implements Value
+{
+    DoubleValue(double val)
+    {
+        m_val = val;
+    }
+
+    public String toString()
+    {
+        return String.valueOf(m_val);
+    }
+
+    public boolean left() { return true; }
+
+    public Value apply(Value v)
+        throws EvalException
+    {
+        throw new EvalException("cannot apply: %s %s", v, this);
+    }
+
+    public double val()
+    {
+        return m_val;
+    }
+
+    private final double m_val;
+}
+
+class BooleanValue implements Value
+{
+    BooleanValue(boolean val)
+    {
+        m_val = val;
+    }
+
+    public String toString()
+    {
+        return String.valueOf(m_val);
+    }
+
+    public boolean left() { return false; }
+
+    public Value apply(Value v)
+        throws EvalException
+    {
+        throw new EvalException("cannot apply: %s %s", this, v);
+    }
+
+    public boolean val()
+    {
+        return m_val;
+    }
+
+    private final boolean m_val;
+}
+
+class BinOpValue implements Value
+{
+    public enum Op {
+        Plus,
+        Minus,
+        Mul,
+        Div,
+        Equal
+    };
+
+    BinOpValue(Op op)
+    {
+        m_op = op;
+    }
+
+    public String toString()
+    {
+        switch (m_op)
+        {
+            case Plus:
+            return "+";
+
+            case Minus:
+            return "-";
+
+            case Mul:
+            return "*";
+
+            case Div:
+            return "/";
+
+            case Equal:
+            return "=";
+
+            default:
+            throw new RuntimeException("unknown operator (should not happen)");
+        }
+    }
+
+    public boolean left() { return true; }
+
+    public Value apply(Value v)
+        throws EvalException
+    {
+        if (v instanceof DoubleValue)
+        {
+            return new DoubleOpValue((DoubleValue)v, this);
+        }
+        else
+            throw new EvalException("wrong arg type: %s %s", v, this);
+    }
+
+    public Op op()
     {
-        m_val = val;
+        return m_op;
     }
 
-    public String toString()
+    static Value apply(Op op, double lhs, double rhs)
     {
-        return String.valueOf(m_val);
+        switch (op)
+        {
+            case Plus:
+            return new DoubleValue(lhs + rhs);
+
+            case Minus:
+            return new DoubleValue(lhs - rhs);
+
+            case Mul:
+            return new DoubleValue(lhs * rhs);
+
+            case Div:
+            return new DoubleValue(lhs / rhs);
+
+            case Equal:
+            return new BooleanValue(lhs == rhs);
+
+            default:
+            throw new RuntimeException("unknown operator (should not happen)");
+        }
     }
 
-    public boolean left() { return true; }
+    private final Op m_op;
+}
 
-    public Value apply(Value v)
-        throws EvalException
+class DoubleOpValue implements Value
+{
+    DoubleOpValue(DoubleValue lhs, BinOpValue op)
     {
-        throw new EvalException(
-                String.format("cannot apply: %s %s", v.toString(), toString()));
+        m_lhs = lhs;
+        m_op = op;
     }
 
-    public double val()
+    public String toString()
     {
-        return m_val;
+        return String.format("%s %s", m_lhs, m_op);
     }
 
-    private final double m_val;
+    public boolean left() { return false; }
+
+    public Value apply(Value v)
+        throws EvalException
+    {
+        if (v instanceof DoubleValue)
+            return BinOpValue.apply(m_op.op(), m_lhs.val(), ((DoubleValue)v).val());
+        else
+            throw new EvalException("wrong arg type: %s %s", this, v);
+    }
+
+    private final DoubleValue m_lhs;
+    private final BinOpValue m_op;
 }
 
-class BooleanValue implements Value
+class LambdaValue implements Value
 {
-    BooleanValue(boolean val)
+    LambdaValue(LambdaExpr lambda, Env env)
     {
-        m_val = val;
+        m_lambda = lambda;
+        m_env = env;
     }
 
     public String toString()
     {
-        return String.valueOf(m_val);
+        return String.format("\\%s.<...>", m_lambda.var().name());
     }
 
     public boolean left() { return false; }
 
-    public Value apply(Value v)
+    public Value apply(Value val)
         throws EvalException
     {
-        throw new EvalException(
-                String.format("cannot apply: %s %s", toString(), v.toString()));
+        if (Metrics.s_counting)
+            Metrics.counters().m_applications++;
+        var env1 = new ValueEnv(m_lambda.var().name(), val, m_env);
+        return m_lambda.expr().evaluate(env1);
     }
 
-    public boolean val()
+    // the number of parameters that can be bound at once
+    public int arity()
     {
-        return m_val;
+        return m_lambda.names().length;
     }
 
-    private final boolean m_val;
+    // applies the first vals.length <= arity() parameters in a single frame,
+    // which is what applying them one at a time would do
+    public Value apply(Value[] vals)
+        throws EvalException
+    {
+        if (Metrics.s_counting)
+            Metrics.counters().m_applications += vals.length;
+        var env1 = new FrameEnv(m_lambda.names(), vals, m_env);
+        if (vals.length < arity())
+            return new LambdaValue(m_lambda.inner(vals.length), env1);
+        return m_lambda.body().evaluate(env1);
+    }
+
+    private final LambdaExpr m_lambda;
+    private final Env m_env;
 }
 
-class BinOpValue implements Value
+abstract class AbstractExpr implements Expr
 {
-    public enum Op {
-        Plus,
-        Minus,
-        Mul,
-        Div,
-        Equal
-    };
+    public AbstractExpr(SrcInfo srcInfo)
+    {
+        this(SrcInfo.pack(srcInfo));
+    }
 
-    BinOpValue(Op op)
+    public AbstractExpr(long pos)
     {
-        m_op = op;
+        m_pos = pos;
     }
 
-    public String toString()
+    // only built when an error is reported
+    public SrcInfo srcInfo()
     {
-        switch (m_op)
+        return SrcInfo.unpack(m_pos);
+    }
+
+    public long srcPos()
+    {
+        return m_pos;
+    }
+
+    // TODO: trace nicely
+    // private static int trace_level = 0;
+    public final Value evaluate(Env env)
+        throws EvalException
+    {
+        // TODO: trace nicely
+        // for (int i = 0; i < trace_level; i++)
+        //     System.err.print(" ");
+        // System.err.format("%s%n", srcInfo());
+        // trace_level += 4;
+
+        var val = Metrics.s_counting ? Metrics.evaluate(this, env) : _evaluate(env);
+
+        // TODO: trace nicely
+        // trace_level -= 4;
+        // for (int i = 0; i < trace_level; i++)
+        //     System.err.print(" ");
+        // System.err.format("=> %s%n", val);
+
+        return val;
+    }
+
+    abstract protected Value _evaluate(Env env)
+        throws EvalException;
+
+    private final long m_pos;
+}
+
+class VarExpr extends AbstractExpr
+{
+    public VarExpr(String var, SrcInfo srcInfo)
+    {
+        super(srcInfo);
+        m_var = var;
+    }
+
+    public VarExpr(String var, long pos)
+    {
+        super(pos);
+        m_var = var;
+    }
+
+    protected Value _evaluate(Env env)
+        throws EvalException
+    {
+        try
         {
-            case Plus:
-            return "+";
+            if (Metrics.s_counting)
+                Metrics.counters().m_lookups++;
+            var clo = env.get(m_var);
+            return clo.evaluate();
+        }
+        catch (EnvException ex)
+        {
+            throw new EvalException(this, ex);
+        }
+        catch (EvalException ex)
+        {
+            ex.appendExprStack(this);
+            throw ex;
+        }
+    }
 
-            case Minus:
-            return "-";
+    public String name()
+    {
+        return m_var;
+    }
 
-            case Mul:
-            return "*";
+    private final String m_var;
+}
 
-            case Div:
-            return "/";
+class AppExpr extends AbstractExpr
+{
+    public AppExpr(Expr e1, Expr e2)
+    {
+        this(e1, e2, SrcInfo.compose(e1.srcPos(), e2.srcPos()));
+    }
 
-            case Equal:
-            return "=";
+    public AppExpr(Expr e1, Expr e2, long pos)
+    {
+        super(pos);
+        m_e1 = e1;
+        m_e2 = e2;
+    }
 
-            default:
-            throw new RuntimeException("unknown operator (should not happen)");
+    protected Value _evaluate(Env env)
+        throws EvalException
+    {
+        var v1 = m_e1.evaluate(env);
+        var v2 = m_e2.evaluate(env);
+        try
+        {
+            return apply(v1, v2);
+        }
+        catch (EvalException ex)
+        {
+            ex.appendExprStack(this);
+            throw ex;
         }
     }
 
-    public boolean left() { return true; }
+    // whichever of v1 and v2 is not left() is applied to the other
+    static Value apply(Value v1, Value v2)
+        throws EvalException
+    {
+        if (!v1.left())
+            return v1.apply(v2);
+        else if (v2.left())
+            return v2.apply(v1);
+        else
+            throw new EvalException("cannot apply: %s %s", v1, v2);
+    }
 
-    public Value apply(Value v)
+    public Expr e1()
+    {
+        return m_e1;
+    }
+
+    public Expr e2()
+    {
+        return m_e2;
+    }
+
+    private final Expr m_e1;
+    private final Expr m_e2;
+}
+
+class LetrecExpr extends AbstractExpr
+{
+    public LetrecExpr(Expr e, java.util.Map<String, Expr> bindings)
+    {
+        this(e, bindings, e.srcPos());
+    }
+
+    public LetrecExpr(Expr e, java.util.Map<String, Expr> bindings, long pos)
+    {
+        super(pos);
+        m_e = e;
+        m_bindings = bindings;
+    }
+
+    protected Value _evaluate(Env env)
+        throws EvalException
+    {
+        var env1 = new RecEnv(m_bindings, env);
+
+        return m_e.evaluate(env1);
+    }
+
+    public Expr expr()
+    {
+        return m_e;
+    }
+
+    public java.util.Map<String, Expr> bindings()
+    {
+        return m_bindings;
+    }
+
+    private final Expr m_e;
+    private final java.util.Map<String, Expr> m_bindings;
+}
+
+class LambdaExpr extends AbstractExpr
+{
+    public LambdaExpr(VarExpr var, Expr e)
+    {
+        this(var, e, SrcInfo.compose(var.srcPos(), e.srcPos()));
+    }
+
+    public LambdaExpr(VarExpr var, Expr e, long pos)
+    {
+        super(pos);
+        m_var = var;
+        m_e = e;
+
+        // \a.\b.\c.body has parameters a b c
+        if (e instanceof LambdaExpr)
+        {
+            var inner = (LambdaExpr)e;
+            m_names = new String[1 + inner.m_names.length];
+            m_names[0] = var.name();
+            System.arraycopy(inner.m_names, 0, m_names, 1, inner.m_names.length);
+            m_body = inner.m_body;
+        }
+        else
+        {
+            m_names = new String[] { var.name() };
+            m_body = e;
+        }
+    }
+
+    protected Value _evaluate(Env env)
         throws EvalException
     {
-        if (v instanceof DoubleValue)
-        {
-            return new DoubleOpValue((DoubleValue)v, this);
-        }
-        else
-            throw new EvalException(
-                String.format("wrong arg type: %s %s", v.toString(), toString()));
+        return new LambdaValue(this, env);
+    }
+
+    public VarExpr var()
+    {
+        return m_var;
+    }
+
+    public Expr expr()
+    {
+        return m_e;
+    }
+
+    // the parameters of this and the lambdas directly nested in it
+    public String[] names()
+    {
+        return m_names;
+    }
+
+    public Expr body()
+    {
+        return m_body;
     }
 
-    public Op op()
+    // the lambda nested i levels down
+    public LambdaExpr inner(int i)
     {
-        return m_op;
+        var l = this;
+        for (; i > 0; i--)
+            l = (LambdaExpr)l.m_e;
+        return l;
     }
 
-    private final Op m_op;
+    private final VarExpr m_var;
+    private final Expr m_e;
+    private final String[] m_names;
+    private final Expr m_body;
 }
 
-class DoubleOpValue implements Value
+class CondExpr extends AbstractExpr
 {
-    DoubleOpValue(DoubleValue lhs, BinOpValue op)
+    public CondExpr(Expr ec, Expr et, Expr ef)
     {
-        m_lhs = lhs;
-        m_op = op;
+        this(ec, et, ef, SrcInfo.compose(et.srcPos(), ec.srcPos()));
     }
 
-    public String toString()
+    public CondExpr(Expr ec, Expr et, Expr ef, long pos)
     {
-        return String.format("%s %s", m_lhs, m_op);
+        super(pos);
+        m_ec = ec;
+        m_et = et;
+        m_ef = ef;
     }
 
-    public boolean left() { return false; }
-
-    public Value apply(Value v)
+    protected Value _evaluate(Env env)
         throws EvalException
     {
-        if (v instanceof DoubleValue)
-        {
-            switch (m_op.op())
-            {
-                case Plus:
-                return new DoubleValue(m_lhs.val() + ((DoubleValue)v).val());
-
-                case Minus:
-                return new DoubleValue(m_lhs.val() - ((DoubleValue)v).val());
-
-                case Mul:
-                return new DoubleValue(m_lhs.val() * ((DoubleValue)v).val());
-
-                case Div:
-                return new DoubleValue(m_lhs.val() / ((DoubleValue)v).val());
-
-                case Equal:
-                return new BooleanValue(m_lhs.val() == ((DoubleValue)v).val());
-
-                default:
-                throw new RuntimeException("unknown operator (should not happen)");
-            }
-        }
+        var cond = m_ec.evaluate(env);
+        if (! (cond instanceof BooleanValue))
+            throw new EvalException(this, "condition not boolean: %s", cond);
+           
+        if (((BooleanValue)cond).val())
+            return m_et.evaluate(env);
         else
-            throw new EvalException(
-                String.format("wrong arg type: %s %s", toString(), v.toString()));
+            return m_ef.evaluate(env);
     }
 
-    private final DoubleValue m_lhs;
-    private final BinOpValue m_op;
-}
-
-class LambdaValue implements Value
-{
-    LambdaValue(VarExpr var, Expr e, Env env)
+    public Expr ec()
     {
-        m_var = var;
-        m_e = e;
-        m_env = env;
+        return m_ec;
     }
 
-    public String toString()
+    public Expr et()
     {
-        return String.format("\\%s.<...>", m_var.name());
+        return m_et;
     }
 
-    public boolean left() { return false; }
-
-    public Value apply(Value val)
-        throws EvalException
+    public Expr ef()
     {
-        var env1 = new ValueEnv(m_var.name(), val, m_env);
-        return m_e.evaluate(env1);
+        return m_ef;
     }
 
-    private final VarExpr m_var;
-    private final Expr m_e;
-    private final Env m_env;
+    private final Expr m_ec;
+    private final Expr m_et;
+    private final Expr m_ef;
 }
 
-abstract class AbstractExpr implements Expr
+class CallExpr extends AbstractExpr
 {
-    public AbstractExpr(SrcInfo srcInfo)
-    {
-        m_srcInfo = srcInfo;
+    // fn a1 ... an, with n > 1 and fn usually a function of as many
+    // parameters; app is the application spine it replaces
+    public CallExpr(AppExpr app, int n)
+    {
+        super(app.srcPos());
+        m_app = app;
+        m_apps = new AppExpr[n];
+        m_args = new Expr[n];
+        Expr e = app;
+        for (int i = n - 1; i >= 0; i--)
+        {
+            m_apps[i] = (AppExpr)e;
+            m_args[i] = m_apps[i].e2();
+            e = m_apps[i].e1();
+        }
+        m_fn = e;
     }
 
-    public SrcInfo srcInfo()
+    protected Value _evaluate(Env env)
+        throws EvalException
     {
-        return m_srcInfo;
+        var fn = m_fn.evaluate(env);
+        if (!(fn instanceof LambdaValue) || ((LambdaValue)fn).arity() == 1)
+            return applyFrom(0, fn, env);
+
+        // applying a lambda to all but its last parameter cannot fail, so
+        // the arguments can be evaluated first, in the same order
+        var lambda = (LambdaValue)fn;
+        var vals = new Value[Math.min(lambda.arity(), m_args.length)];
+        for (int i = 0; i < vals.length; i++)
+            vals[i] = m_args[i].evaluate(env);
+
+        Value val;
+        try
+        {
+            val = lambda.apply(vals);
+        }
+        catch (EvalException ex)
+        {
+            ex.appendExprStack(m_apps[vals.length - 1]);
+            throw ex;
+        }
+        return applyFrom(vals.length, val, env);
     }
 
-    // TODO: trace nicely
-    // private static int trace_level = 0;
-    public final Value evaluate(Env env)
+    // applies the arguments from i on one at a time, as AppExpr does
+    private Value applyFrom(int i, Value fn, Env env)
         throws EvalException
     {
-        // TODO: trace nicely
-        // for (int i = 0; i < trace_level; i++)
-        //     System.err.print(" ");
-        // System.err.format("%s%n", srcInfo());
-        // trace_level += 4;
-
-        var val = _evaluate(env);
+        for (; i < m_args.length; i++)
+        {
+            var val = m_args[i].evaluate(env);
+            try
+            {
+                fn = AppExpr.apply(fn, val);
+            }
+            catch (EvalException ex)
+            {
+                ex.appendExprStack(m_apps[i]);
+                throw ex;
+            }
+        }
+        return fn;
+    }
 
-        // TODO: trace nicely
-        // trace_level -= 4;
-        // for (int i = 0; i < trace_level; i++)
-        //     System.err.print(" ");
-        // System.err.format("=> %s%n", val);
+    public AppExpr app()
+    {
+        return m_app;
+    }
 
-        return val;
+    public Expr fn()
+    {
+        return m_fn;
     }
 
-    abstract protected Value _evaluate(Env env)
-        throws EvalException;
+    public Expr[] args()
+    {
+        return m_args;
+    }
 
-    private final SrcInfo m_srcInfo;
+    private final AppExpr m_app;
+    private final AppExpr[] m_apps;
+    private final Expr m_fn;
+    private final Expr[] m_args;
 }
 
-class VarExpr extends AbstractExpr
+class BinaryOpExpr extends AbstractExpr
 {
-    public VarExpr(String var, SrcInfo srcInfo)
+    // lhs op rhs, i.e. AppExpr(inner, rhs) with inner = AppExpr(lhs, op),
+    // where op is known to be a builtin operator
+    public BinaryOpExpr(AppExpr inner, BinOpValue op, Expr rhs, long pos)
     {
-        super(srcInfo);
-        m_var = var;
+        super(pos);
+        m_inner = inner;
+        m_lhs = inner.e1();
+        m_op = op;
+        m_rhs = rhs;
     }
 
     protected Value _evaluate(Env env)
         throws EvalException
     {
-        try
+        var v1 = m_lhs.evaluate(env);
+        if (!(v1 instanceof DoubleValue))
         {
-            var clo = env.get(m_var);
-            return clo.evaluate();
+            // higher-order or ill-typed use: apply the way AppExpr does
+            Value partial;
+            try
+            {
+                partial = AppExpr.apply(v1, m_op);
+            }
+            catch (EvalException ex)
+            {
+                ex.appendExprStack(m_inner);
+                throw ex;
+            }
+
+            var v2 = m_rhs.evaluate(env);
+            try
+            {
+                return AppExpr.apply(partial, v2);
+            }
+            catch (EvalException ex)
+            {
+                ex.appendExprStack(this);
+                throw ex;
+            }
         }
-        catch (EnvException ex)
+
+        var v2 = m_rhs.evaluate(env);
+        if (v2 instanceof DoubleValue)
+            return BinOpValue.apply(m_op.op(), ((DoubleValue)v1).val(), ((DoubleValue)v2).val());
+
+        try
         {
-            throw new EvalException(ex.getMessage(), this);
+            return new DoubleOpValue((DoubleValue)v1, m_op).apply(v2);
         }
         catch (EvalException ex)
         {
@@ -726,37 +2939,61 @@ class VarExpr extends AbstractExpr
         }
     }
 
-    public String name()
+    public AppExpr inner()
     {
-        return m_var;
+        return m_inner;
     }
 
-    private final String m_var;
+    public Expr lhs()
+    {
+        return m_lhs;
+    }
+
+    public BinOpValue op()
+    {
+        return m_op;
+    }
+
+    public Expr rhs()
+    {
+        return m_rhs;
+    }
+
+    private final AppExpr m_inner;
+    private final Expr m_lhs;
+    private final BinOpValue m_op;
+    private final Expr m_rhs;
 }
 
-class AppExpr extends AbstractExpr
+class InlinedAppExpr extends AbstractExpr
 {
-    public AppExpr(Expr e1, Expr e2)
+    // a saturated call whose callee body was inlined by Inliner: the
+    // arguments are still evaluated strictly, left to right, before the body
+    public InlinedAppExpr(
+            java.util.List<VarExpr> params,
+            java.util.List<Expr> args,
+            Expr body,
+            long pos)
     {
-        super(e1.srcInfo().composeWith(e2.srcInfo()));
-        m_e1 = e1;
-        m_e2 = e2;
+        super(pos);
+        m_params = params;
+        m_args = args;
+        m_body = body;
     }
 
     protected Value _evaluate(Env env)
         throws EvalException
     {
-        var v1 = m_e1.evaluate(env);
-        var v2 = m_e2.evaluate(env);
+        var env1 = env;
+        for (int i = 0; i < m_params.size(); i++)
+        {
+            var val = m_args.get(i).evaluate(env);
+            env1 = new ValueEnv(m_params.get(i).name(), val, env1);
+        }
+
         try
         {
-            if (!v1.left())
-                return v1.apply(v2);
-            else if (v2.left())
-                return v2.apply(v1);
-            else
-                throw new EvalException(
-                    String.format("cannot apply: %s %s", v1, v2));
+            return m_body.evaluate(env1);
         }
         catch (EvalException ex)
         {
@@ -765,78 +3002,92 @@ class AppExpr extends AbstractExpr
         }
     }
 
-    private final Expr m_e1;
-    private final Expr m_e2;
+    public java.util.List<VarExpr> params()
+    {
+        return m_params;
+    }
+
+    public java.util.List<Expr> args()
+    {
+        return m_args;
+    }
+
+    public Expr body()
+    {
+        return m_body;
+    }
+
+    private final java.util.List<VarExpr> m_params;
+    private final java.util.List<Expr> m_args;
+    private final Expr m_body;
 }
 
-class LetrecExpr extends AbstractExpr
+class MemoExpr extends AbstractExpr
 {
-    public LetrecExpr(Expr e, java.util.Map<String, Expr> bindings)
+    // a region with slots for the subexpressions it shares, see Cse
+    public MemoExpr(Expr body, int slots)
     {
-        super(e.srcInfo());
-        m_e = e;
-        m_bindings = bindings;
+        super(body.srcPos());
+        m_body = body;
+        m_slots = slots;
     }
 
     protected Value _evaluate(Env env)
         throws EvalException
     {
-        var env1 = new RecEnv(m_bindings, env);
+        return m_body.evaluate(new MemoEnv(m_slots, env));
+    }
 
-        return m_e.evaluate(env1);
+    public Expr body()
+    {
+        return m_body;
     }
 
-    private final Expr m_e;
-    private final java.util.Map<String, Expr> m_bindings;
+    public int slots()
+    {
+        return m_slots;
+    }
+
+    private final Expr m_body;
+    private final int m_slots;
 }
 
-class LambdaExpr extends AbstractExpr
+class SharedExpr extends AbstractExpr
 {
-    public LambdaExpr(VarExpr var, Expr e)
+    // an occurrence of a subexpression shared in its region, whose
+    // evaluation env is therefore always the MemoEnv of the region
+    public SharedExpr(int slot, Expr e)
     {
-        super(var.srcInfo().composeWith(e.srcInfo()));
-        m_var = var;
+        super(e.srcPos());
+        m_slot = slot;
         m_e = e;
     }
 
     protected Value _evaluate(Env env)
         throws EvalException
     {
-        return new LambdaValue(m_var, m_e, env);
+        var vals = ((MemoEnv)env).m_vals;
+        var val = vals[m_slot];
+        if (val == null)
+        {
+            val = m_e.evaluate(env);
+            vals[m_slot] = val;
+        }
+        return val;
     }
 
-    private final VarExpr m_var;
-    private final Expr m_e;
-}
-
-class CondExpr extends AbstractExpr
-{
-    public CondExpr(Expr ec, Expr et, Expr ef)
+    public int slot()
     {
-        super(et.srcInfo().composeWith(ec.srcInfo()));
-        m_ec = ec;
-        m_et = et;
-        m_ef = ef;
+        return m_slot;
     }
 
-    protected Value _evaluate(Env env)
-        throws EvalException
+    public Expr expr()
     {
-        var cond = m_ec.evaluate(env);
-        if (! (cond instanceof BooleanValue))
-            throw new EvalException(
-                    String.format("condition not boolean: %s", cond),
-                    this);
-           
-        if (((BooleanValue)cond).val())
-            return m_et.evaluate(env);
-        else
-            return m_ef.evaluate(env);
+        return m_e;
     }
 
-    private final Expr m_ec;
-    private final Expr m_et;
-    private final Expr m_ef;
+    private final int m_slot;
+    private final Expr m_e;
 }
 
 class ExprClosure implements Closure
@@ -851,6 +3102,8 @@ class ExprClosure implements Closure
         throws EvalException
     {
         // TODO: memoize result
+        if (Metrics.s_counting)
+            Metrics.counters().m_thunksForced++;
         return m_expr.evaluate(m_env);
     }
 
@@ -885,6 +3138,8 @@ class ValueEnv implements Env
     public Closure get(String var)
         throws EnvException
     {
+        if (Metrics.s_counting)
+            Metrics.counters().m_lookupFrames++;
         if (var.equals(m_v))
             return new ValueClosure(m_val);
 
@@ -896,6 +3151,53 @@ class ValueEnv implements Env
     private final Env m_outer;
 }
 
+class FrameEnv implements Env
+{
+    // names may be longer than vals; later names shadow earlier ones
+    public FrameEnv(String[] names, Value[] vals, Env outer)
+    {
+        m_names = names;
+        m_vals = vals;
+        m_outer = outer;
+    }
+
+    public Closure get(String var)
+        throws EnvException
+    {
+        if (Metrics.s_counting)
+            Metrics.counters().m_lookupFrames++;
+        for (int i = m_vals.length - 1; i >= 0; i--)
+            if (var.equals(m_names[i]))
+                return new ValueClosure(m_vals[i]);
+
+        return m_outer.get(var);
+    }
+
+    private final String[] m_names;
+    private final Value[] m_vals;
+    private final Env m_outer;
+}
+
+class MemoEnv implements Env
+{
+    // binds no names, only holds the values of a region's shared
+    // subexpressions
+    public MemoEnv(int slots, Env outer)
+    {
+        m_vals = new Value[slots];
+        m_outer = outer;
+    }
+
+    public Closure get(String var)
+        throws EnvException
+    {
+        return m_outer.get(var);
+    }
+
+    final Value[] m_vals;
+    private final Env m_outer;
+}
+
 class RecEnv implements Env
 {
     public RecEnv(java.util.Map<String, Expr> bindings, Env outer)
@@ -904,11 +3206,16 @@ class RecEnv implements Env
         for (var b : bindings.entrySet())
             m_bindings.put(b.getKey(), new ExprClosure(b.getValue(), this));
         m_outer = outer;
+
+        if (Metrics.s_counting)
+            Metrics.counters().m_thunksCreated += bindings.size();
     }
 
     public Closure get(String var)
         throws EnvException
     {
+        if (Metrics.s_counting)
+            Metrics.counters().m_lookupFrames++;
         var clo = m_bindings.get(var);
         if (clo == null)
             clo = m_outer.get(var);
@@ -949,14 +3256,30 @@ class SystemEnv implements Env
             return new BinOpValue(BinOpValue.Op.Equal);
         }
 
-        try
+        if (mayBeNumber(var))
         {
-            return new DoubleValue(Double.valueOf(var));
+            try
+            {
+                return new DoubleValue(Double.valueOf(var));
+            }
+            catch (NumberFormatException ex)
+            {
+            }
         }
-        catch (NumberFormatException ex)
+
+        throw new EnvException("unbound var: %s", var);
+    }
+
+    // whatever Double.valueOf() accepts has a digit or is NaN or Infinity;
+    // anything else is unbound without the cost of a NumberFormatException
+    private static boolean mayBeNumber(String var)
+    {
+        for (int i = 0; i < var.length(); i++)
         {
+            var c = var.charAt(i);
+            if (c >= '0' && c <= '9')
+                return true;
         }
-
-        throw new EnvException(String.format("unbound var: %s", var));
+        return var.contains("NaN") || var.contains("Infinity");
     }
 }
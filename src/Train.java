@@ -0,0 +1,49 @@
+// Runs every .root file of a directory through every engine, with and without
+// the module cache, so that a JVM dumping its loaded classes at exit (AppCDS)
+// sees the same code paths Test does, error paths included.
+public class Train
+{
+    public static void main(String[] args)
+        throws Exception
+    {
+        if (args.length != 2)
+        {
+            System.err.format("Usage: java %s <input_dir> <cache_dir>%n", Train.class.getName());
+            System.exit(-1);
+        }
+
+        var files = new java.io.File(args[0]).listFiles((dir, name) -> name.endsWith(".root"));
+        if (files == null)
+            throw new java.io.FileNotFoundException(args[0]);
+        java.util.Arrays.sort(files);
+
+        var cacheDir = new java.io.File(args[1]);
+        var out = new java.io.PrintStream(java.io.OutputStream.nullOutputStream());
+        var runs = 0;
+        for (var f : files)
+        {
+            for (var parallel : new boolean[] { false, true })
+            {
+                for (var engine : Test.Engine.values())
+                {
+                    // twice, so that the second run reads the cache
+                    for (int i = 0; i < 2; i++)
+                    {
+                        try
+                        {
+                            var root = Test.compile(f.getPath(), parallel, parallel ? null : cacheDir);
+                            out.println(Test.run(root, engine));
+                        }
+                        catch (RootException ex)
+                        {
+                            out.println(ex);
+                        }
+                        runs++;
+                    }
+                }
+            }
+        }
+
+        System.out.format("%d files, %d runs%n", files.length, runs);
+    }
+}
@@ -0,0 +1,683 @@
+// Alternative engine: the AST is flattened into one int[] instruction
+// stream plus a constant pool, and run by a dispatch loop over a
+// per-activation register file.
+//
+// Registers hold either a Value or, for letrec-bound variables, a VmThunk.
+// Closures and thunks capture the slots they use by value (flat closures);
+// a slot operand >= 0 names a register, a slot < 0 names capture -1 - slot.
+//
+// A Vm holds nothing but its code, so a program is compiled once and then
+// run any number of times, by any number of threads at once; see of().
+class Vm
+{
+    static final int LOAD_CONST = 0;    // dst const
+    static final int LOAD_SLOT = 1;     // dst slot
+    static final int FORCE = 2;         // dst slot
+    static final int UNBOUND = 3;       // expr
+    static final int CALL = 4;          // dst fn arg expr
+    static final int TAIL_CALL = 5;     // fn arg expr
+    static final int BINOP_L = 6;       // partial lhs const expr
+    static final int BINOP_R = 7;       // dst partial lhs const rhs expr
+    static final int BRANCH = 8;        // cond target expr (jump if false)
+    static final int JUMP = 9;          // target
+    static final int MAKE_CLOSURE = 10; // dst block
+    static final int MAKE_THUNK = 11;   // dst block
+    static final int FILL = 12;         // reg
+    static final int RET = 13;          // src
+
+    // the Vm of root, compiled the first time it is asked for
+    public static Vm of(Expr root)
+    {
+        synchronized (s_compiled)
+        {
+            var vm = s_compiled.get(root);
+            if (vm == null)
+            {
+                vm = new Vm(root);
+                s_compiled.put(root, vm);
+            }
+            return vm;
+        }
+    }
+
+    public Vm(Expr root)
+    {
+        var compiler = new VmCompiler();
+        m_entry = compiler.compileProgram(root);
+        m_code = compiler.code();
+        m_consts = compiler.consts();
+        m_exprs = compiler.exprs();
+        m_blocks = compiler.blocks();
+    }
+
+    public Value run()
+        throws EvalException
+    {
+        var b = m_blocks[m_entry];
+        return run(b.m_entry, new Object[b.m_nregs], new Object[0]);
+    }
+
+    Value call(VmClosure c, Value arg)
+        throws EvalException
+    {
+        var regs = new Object[c.m_block.m_nregs];
+        regs[0] = arg;
+        return run(c.m_block.m_entry, regs, c.m_captures);
+    }
+
+    Value force(VmThunk t)
+        throws EvalException
+    {
+        if (t.m_val == null)
+        {
+            var regs = new Object[t.m_block.m_nregs];
+            t.m_val = run(t.m_block.m_entry, regs, t.m_captures);
+        }
+        return t.m_val;
+    }
+
+    private Value run(int pc, Object[] regs, Object[] capt)
+        throws EvalException
+    {
+        final var code = m_code;
+        for (;;)
+        {
+            switch (code[pc])
+            {
+                case LOAD_CONST:
+                regs[code[pc + 1]] = m_consts[code[pc + 2]];
+                pc += 3;
+                break;
+
+                case LOAD_SLOT:
+                regs[code[pc + 1]] = slot(code[pc + 2], regs, capt);
+                pc += 3;
+                break;
+
+                case FORCE:
+                regs[code[pc + 1]] = force((VmThunk)slot(code[pc + 2], regs, capt));
+                pc += 3;
+                break;
+
+                case UNBOUND:
+                {
+                    var v = (VarExpr)m_exprs[code[pc + 1]];
+                    throw new EvalException(v, "unbound var: %s", v.name());
+                }
+
+                case CALL:
+                regs[code[pc + 1]] = apply(
+                        (Value)regs[code[pc + 2]],
+                        (Value)regs[code[pc + 3]],
+                        code[pc + 4]);
+                pc += 5;
+                break;
+
+                case TAIL_CALL:
+                {
+                    var fn = (Value)regs[code[pc + 1]];
+                    var arg = (Value)regs[code[pc + 2]];
+                    if (!(fn instanceof VmClosure))
+                        return apply(fn, arg, code[pc + 3]);
+
+                    // reuse this activation for the callee, registers
+                    // included: a block writes each register before it
+                    // reads it, and closures copy what they capture
+                    var c = (VmClosure)fn;
+                    if (regs.length < c.m_block.m_nregs)
+                        regs = new Object[c.m_block.m_nregs];
+                    regs[0] = arg;
+                    capt = c.m_captures;
+                    pc = c.m_block.m_entry;
+                    break;
+                }
+
+                case BINOP_L:
+                {
+                    // lhs op: nothing to do if lhs is a number, otherwise
+                    // fall back to the generic application
+                    var lhs = (Value)regs[code[pc + 2]];
+                    regs[code[pc + 1]] = lhs instanceof DoubleValue
+                        ? null
+                        : apply(lhs, m_consts[code[pc + 3]], code[pc + 4]);
+                    pc += 5;
+                    break;
+                }
+
+                case BINOP_R:
+                {
+                    var partial = (Value)regs[code[pc + 2]];
+                    var rhs = (Value)regs[code[pc + 5]];
+                    Value val;
+                    if (partial != null)
+                        val = apply(partial, rhs, code[pc + 6]);
+                    else if (rhs instanceof DoubleValue)
+                        val = BinOpValue.apply(
+                                ((BinOpValue)m_consts[code[pc + 4]]).op(),
+                                ((DoubleValue)regs[code[pc + 3]]).val(),
+                                ((DoubleValue)rhs).val());
+                    else
+                        val = apply(
+                                new DoubleOpValue(
+                                    (DoubleValue)regs[code[pc + 3]],
+                                    (BinOpValue)m_consts[code[pc + 4]]),
+                                rhs,
+                                code[pc + 6]);
+                    regs[code[pc + 1]] = val;
+                    pc += 7;
+                    break;
+                }
+
+                case BRANCH:
+                {
+                    var cond = (Value)regs[code[pc + 1]];
+                    if (!(cond instanceof BooleanValue))
+                        throw new EvalException(m_exprs[code[pc + 3]], "condition not boolean: %s", cond);
+                    pc = ((BooleanValue)cond).val() ? pc + 4 : code[pc + 2];
+                    break;
+                }
+
+                case JUMP:
+                pc = code[pc + 1];
+                break;
+
+                case MAKE_CLOSURE:
+                {
+                    var b = m_blocks[code[pc + 2]];
+                    regs[code[pc + 1]] = new VmClosure(this, b, new Object[b.m_captures.length]);
+                    pc += 3;
+                    break;
+                }
+
+                case MAKE_THUNK:
+                {
+                    var b = m_blocks[code[pc + 2]];
+                    regs[code[pc + 1]] = new VmThunk(b, new Object[b.m_captures.length]);
+                    pc += 3;
+                    break;
+                }
+
+                case FILL:
+                {
+                    var o = regs[code[pc + 1]];
+                    VmBlock b;
+                    Object[] captures;
+                    if (o instanceof VmClosure)
+                    {
+                        b = ((VmClosure)o).m_block;
+                        captures = ((VmClosure)o).m_captures;
+                    }
+                    else
+                    {
+                        b = ((VmThunk)o).m_block;
+                        captures = ((VmThunk)o).m_captures;
+                    }
+                    for (int i = 0; i < captures.length; i++)
+                        captures[i] = slot(b.m_captures[i], regs, capt);
+                    pc += 2;
+                    break;
+                }
+
+                case RET:
+                return (Value)regs[code[pc + 1]];
+
+                default:
+                throw new RuntimeException(
+                        String.format("bad opcode %d at %d (should not happen)", code[pc], pc));
+            }
+        }
+    }
+
+    private static Object slot(int s, Object[] regs, Object[] capt)
+    {
+        return s >= 0 ? regs[s] : capt[-1 - s];
+    }
+
+    // same rules as AppExpr
+    private Value apply(Value v1, Value v2, int expr)
+        throws EvalException
+    {
+        try
+        {
+            if (!v1.left())
+                return v1 instanceof VmClosure
+                    ? call((VmClosure)v1, v2)
+                    : v1.apply(v2);
+            else if (v2.left())
+                return v2.apply(v1);
+            else
+                throw new EvalException("cannot apply: %s %s", v1, v2);
+        }
+        catch (EvalException ex)
+        {
+            ex.appendExprStack(m_exprs[expr]);
+            throw ex;
+        }
+    }
+
+    private final int m_entry;
+    private final int[] m_code;
+    private final Value[] m_consts;
+    private final Expr[] m_exprs;
+    private final VmBlock[] m_blocks;
+
+    // by identity, as Expr does not override equals(); the code refers to
+    // nodes below a root but not to the root itself, so an entry goes once
+    // its root does
+    private static final java.util.Map<Expr, Vm> s_compiled = new java.util.WeakHashMap<Expr, Vm>();
+}
+
+class VmBlock
+{
+    // param is null for thunk and top-level blocks
+    VmBlock(VarExpr param, int[] captures)
+    {
+        m_param = param;
+        m_captures = captures;
+    }
+
+    final VarExpr m_param;
+    final int[] m_captures;   // slots in the enclosing activation
+    int m_entry;
+    int m_nregs;
+}
+
+class VmClosure implements Value
+{
+    VmClosure(Vm vm, VmBlock block, Object[] captures)
+    {
+        m_vm = vm;
+        m_block = block;
+        m_captures = captures;
+    }
+
+    public String toString()
+    {
+        return String.format("\\%s.<...>", m_block.m_param.name());
+    }
+
+    public boolean left() { return false; }
+
+    public Value apply(Value v)
+        throws EvalException
+    {
+        return m_vm.call(this, v);
+    }
+
+    final Vm m_vm;
+    final VmBlock m_block;
+    final Object[] m_captures;
+}
+
+class VmThunk
+{
+    VmThunk(VmBlock block, Object[] captures)
+    {
+        m_block = block;
+        m_captures = captures;
+    }
+
+    final VmBlock m_block;
+    final Object[] m_captures;
+    Value m_val;
+}
+
+class VmCompiler
+{
+    public int compileProgram(Expr root)
+    {
+        var b = newBlock(null, null, root);
+        while (!m_pending.isEmpty())
+            compileBlock(m_pending.remove());
+        return b;
+    }
+
+    public int[] code()
+    {
+        return java.util.Arrays.copyOf(m_code, m_len);
+    }
+
+    public Value[] consts()
+    {
+        return m_consts.toArray(new Value[0]);
+    }
+
+    public Expr[] exprs()
+    {
+        return m_exprs.toArray(new Expr[0]);
+    }
+
+    public VmBlock[] blocks()
+    {
+        return m_blocks.toArray(new VmBlock[0]);
+    }
+
+    private void compileBlock(Pending p)
+    {
+        m_block = p.m_block;
+        m_block.m_entry = m_len;
+        m_block.m_nregs = p.m_block.m_param == null ? 0 : 1;
+        compileTail(p.m_body, p.m_scope);
+    }
+
+    // queues body for compilation as a block of its own, capturing its
+    // free variables from the current scope
+    private int newBlock(VarExpr param, Scope scope, Expr body)
+    {
+        var free = Inliner.freeVars(body);
+        if (param != null)
+            free.remove(param.name());
+
+        var inner = new Scope(null);
+        var slots = new java.util.ArrayList<Integer>();
+        for (var name : free)
+        {
+            var v = resolve(name, scope);
+            if (v == null)
+                continue;
+            inner.m_names.put(name, new Var(-1 - slots.size(), v.m_thunk));
+            slots.add(v.m_slot);
+        }
+        if (param != null)
+            inner.m_names.put(param.name(), new Var(0, false));
+
+        var captures = new int[slots.size()];
+        for (int i = 0; i < captures.length; i++)
+            captures[i] = slots.get(i);
+
+        var b = new VmBlock(param, captures);
+        m_blocks.add(b);
+        m_pending.add(new Pending(b, inner, body));
+        return m_blocks.size() - 1;
+    }
+
+    private void compileTail(Expr e, Scope scope)
+    {
+        if (e instanceof AppExpr && binOp((AppExpr)e, scope) == null)
+        {
+            var app = (AppExpr)e;
+            var fn = compile(app.e1(), scope);
+            var arg = compile(app.e2(), scope);
+            emit(TAIL_CALL, fn, arg, expr(app));
+        }
+        else if (e instanceof CondExpr)
+        {
+            var c = (CondExpr)e;
+            var cond = compile(c.ec(), scope);
+            var branch = emit(BRANCH, cond, 0, expr(c));
+            compileTail(c.et(), scope);
+            m_code[branch + 2] = m_len;
+            compileTail(c.ef(), scope);
+        }
+        else if (e instanceof LetrecExpr)
+            compileTail(((LetrecExpr)e).expr(), bindLetrec((LetrecExpr)e, scope));
+        else if (e instanceof InlinedAppExpr)
+            compileTail(((InlinedAppExpr)e).body(), bindArgs((InlinedAppExpr)e, scope));
+        else if (e instanceof CallExpr)
+            compileTail(((CallExpr)e).app(), scope);
+        else if (e instanceof MemoExpr)
+            compileTail(((MemoExpr)e).body(), scope);
+        else if (e instanceof SharedExpr)
+            compileTail(((SharedExpr)e).expr(), scope);
+        else
+            emit(RET, compile(e, scope));
+    }
+
+    // returns the register holding the value of e
+    private int compile(Expr e, Scope scope)
+    {
+        if (e instanceof VarExpr)
+        {
+            var name = ((VarExpr)e).name();
+            var v = resolve(name, scope);
+            if (v != null)
+            {
+                if (!v.m_thunk && v.m_slot >= 0)
+                    return v.m_slot;
+                var dst = newReg();
+                emit(v.m_thunk ? FORCE : LOAD_SLOT, dst, v.m_slot);
+                return dst;
+            }
+
+            var val = literal(name);
+            if (val == null)
+            {
+                emit(UNBOUND, expr(e));
+                return newReg();
+            }
+
+            var dst = newReg();
+            emit(LOAD_CONST, dst, constant(name, val));
+            return dst;
+        }
+        else if (e instanceof AppExpr)
+        {
+            var app = (AppExpr)e;
+            var op = binOp(app, scope);
+            if (op != null)
+                return compileBinOp((AppExpr)app.e1(), app.e2(), app, scope);
+
+            var fn = compile(app.e1(), scope);
+            var arg = compile(app.e2(), scope);
+            var dst = newReg();
+            emit(CALL, dst, fn, arg, expr(app));
+            return dst;
+        }
+        else if (e instanceof BinaryOpExpr)
+        {
+            var b = (BinaryOpExpr)e;
+            return compileBinOp(b.inner(), b.rhs(), b, scope);
+        }
+        else if (e instanceof CondExpr)
+        {
+            var c = (CondExpr)e;
+            var dst = newReg();
+            var cond = compile(c.ec(), scope);
+            var branch = emit(BRANCH, cond, 0, expr(c));
+            emit(LOAD_SLOT, dst, compile(c.et(), scope));
+            var jump = emit(JUMP, 0);
+            m_code[branch + 2] = m_len;
+            emit(LOAD_SLOT, dst, compile(c.ef(), scope));
+            m_code[jump + 1] = m_len;
+            return dst;
+        }
+        else if (e instanceof LambdaExpr)
+        {
+            var l = (LambdaExpr)e;
+            var dst = newReg();
+            emit(MAKE_CLOSURE, dst, newBlock(l.var(), scope, l.expr()));
+            emit(FILL, dst);
+            return dst;
+        }
+        else if (e instanceof LetrecExpr)
+            return compile(((LetrecExpr)e).expr(), bindLetrec((LetrecExpr)e, scope));
+        else if (e instanceof InlinedAppExpr)
+            return compile(((InlinedAppExpr)e).body(), bindArgs((InlinedAppExpr)e, scope));
+        else if (e instanceof CallExpr)
+            return compile(((CallExpr)e).app(), scope);
+        else if (e instanceof MemoExpr)
+            return compile(((MemoExpr)e).body(), scope);
+        else if (e instanceof SharedExpr)
+            return compile(((SharedExpr)e).expr(), scope);
+        else
+            throw new RuntimeException(
+                    String.format("cannot compile %s (should not happen)", e.getClass().getName()));
+    }
+
+    // lhs op rhs with inner = lhs op, and op a builtin operator
+    private int compileBinOp(AppExpr inner, Expr rhsExpr, Expr e, Scope scope)
+    {
+        var name = ((VarExpr)inner.e2()).name();
+        var k = constant(name, literal(name));
+        var lhs = compile(inner.e1(), scope);
+        var partial = newReg();
+        emit(BINOP_L, partial, lhs, k, expr(inner));
+        var rhs = compile(rhsExpr, scope);
+        var dst = newReg();
+        emit(BINOP_R, dst, partial, lhs, k, rhs, expr(e));
+        return dst;
+    }
+
+    private Scope bindLetrec(LetrecExpr letrec, Scope scope)
+    {
+        var scope1 = new Scope(scope);
+        for (var name : letrec.bindings().keySet())
+            scope1.m_names.put(name, new Var(newReg(), true));
+
+        // allocate every thunk first so that siblings can capture each other
+        for (var b : letrec.bindings().entrySet())
+        {
+            var reg = scope1.m_names.get(b.getKey()).m_slot;
+            emit(MAKE_THUNK, reg, newBlock(null, scope1, b.getValue()));
+        }
+        for (var v : scope1.m_names.values())
+            emit(FILL, v.m_slot);
+
+        return scope1;
+    }
+
+    private Scope bindArgs(InlinedAppExpr call, Scope scope)
+    {
+        var scope1 = new Scope(scope);
+        for (int i = 0; i < call.params().size(); i++)
+        {
+            var reg = compile(call.args().get(i), scope);
+            scope1.m_names.put(call.params().get(i).name(), new Var(reg, false));
+        }
+        return scope1;
+    }
+
+    // the operator of app if it has the form lhs op rhs with op a builtin
+    private VarExpr binOp(AppExpr app, Scope scope)
+    {
+        if (!(app.e1() instanceof AppExpr))
+            return null;
+
+        var op = ((AppExpr)app.e1()).e2();
+        if (!(op instanceof VarExpr) || resolve(((VarExpr)op).name(), scope) != null)
+            return null;
+
+        return literal(((VarExpr)op).name()) instanceof BinOpValue ? (VarExpr)op : null;
+    }
+
+    private static Value literal(String name)
+    {
+        try
+        {
+            return SYSTEM_ENV.get(name).evaluate();
+        }
+        catch (EnvException | EvalException ex)
+        {
+            return null;
+        }
+    }
+
+    private static Var resolve(String name, Scope scope)
+    {
+        for (var s = scope; s != null; s = s.m_outer)
+        {
+            var v = s.m_names.get(name);
+            if (v != null)
+                return v;
+        }
+        return null;
+    }
+
+    private int constant(String name, Value val)
+    {
+        var k = m_constIndex.get(name);
+        if (k == null)
+        {
+            k = m_consts.size();
+            m_consts.add(val);
+            m_constIndex.put(name, k);
+        }
+        return k;
+    }
+
+    private int expr(Expr e)
+    {
+        m_exprs.add(e);
+        return m_exprs.size() - 1;
+    }
+
+    private int newReg()
+    {
+        return m_block.m_nregs++;
+    }
+
+    // returns the address of the instruction
+    private int emit(int... instr)
+    {
+        if (m_len + instr.length > m_code.length)
+            m_code = java.util.Arrays.copyOf(m_code, 2 * (m_len + instr.length));
+        System.arraycopy(instr, 0, m_code, m_len, instr.length);
+        m_len += instr.length;
+        return m_len - instr.length;
+    }
+
+    private static final int LOAD_CONST = Vm.LOAD_CONST;
+    private static final int LOAD_SLOT = Vm.LOAD_SLOT;
+    private static final int FORCE = Vm.FORCE;
+    private static final int UNBOUND = Vm.UNBOUND;
+    private static final int CALL = Vm.CALL;
+    private static final int TAIL_CALL = Vm.TAIL_CALL;
+    private static final int BINOP_L = Vm.BINOP_L;
+    private static final int BINOP_R = Vm.BINOP_R;
+    private static final int BRANCH = Vm.BRANCH;
+    private static final int JUMP = Vm.JUMP;
+    private static final int MAKE_CLOSURE = Vm.MAKE_CLOSURE;
+    private static final int MAKE_THUNK = Vm.MAKE_THUNK;
+    private static final int FILL = Vm.FILL;
+    private static final int RET = Vm.RET;
+
+    private static class Var
+    {
+        Var(int slot, boolean thunk)
+        {
+            m_slot = slot;
+            m_thunk = thunk;
+        }
+
+        final int m_slot;
+        final boolean m_thunk;
+    }
+
+    private static class Scope
+    {
+        Scope(Scope outer)
+        {
+            m_outer = outer;
+        }
+
+        final java.util.Map<String, Var> m_names =
+            new java.util.HashMap<String, Var>();
+        final Scope m_outer;
+    }
+
+    private static class Pending
+    {
+        Pending(VmBlock block, Scope scope, Expr body)
+        {
+            m_block = block;
+            m_scope = scope;
+            m_body = body;
+        }
+
+        final VmBlock m_block;
+        final Scope m_scope;
+        final Expr m_body;
+    }
+
+    private int[] m_code = new int[256];
+    private int m_len;
+    private VmBlock m_block;
+    private final java.util.List<Value> m_consts = new java.util.ArrayList<Value>();
+    private final java.util.Map<String, Integer> m_constIndex =
+        new java.util.HashMap<String, Integer>();
+    private final java.util.List<Expr> m_exprs = new java.util.ArrayList<Expr>();
+    private final java.util.List<VmBlock> m_blocks = new java.util.ArrayList<VmBlock>();
+    private final java.util.ArrayDeque<Pending> m_pending = new java.util.ArrayDeque<Pending>();
+
+    private static final Env SYSTEM_ENV = new SystemEnv();
+}
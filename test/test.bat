@@ -7,6 +7,8 @@ set INPUT=input
 set OUTPUT=output
 set OUTPUT_EXPECTED=output.expected
 set LIST=list
+set CACHE=output.cache
+if not defined TEST set TEST=java -Dinterp.parallel.minChunkLines=1 -cp %CLASSES% Test
 
 rmdir /s /q %OUTPUT%
 if EXIST %OUTPUT% (
@@ -14,17 +16,66 @@ if EXIST %OUTPUT% (
     goto :eof
 )
 mkdir %OUTPUT%
+rmdir /s /q %CACHE%
 
 echo [Usage] >> %OUTPUT%\out.txt
 echo [Usage] >> %OUTPUT%\err.txt
-java -cp %CLASSES% Test >> %OUTPUT%\out.txt 2>> %OUTPUT%\err.txt
+%TEST% >> %OUTPUT%\out.txt 2>> %OUTPUT%\err.txt
 
 for /f %%a in (%LIST%) do (
     echo [%%a] >> %OUTPUT%\out.txt
     echo [%%a] >> %OUTPUT%\err.txt
-    java -cp %CLASSES% Test %INPUT%\%%a >> %OUTPUT%\out.txt 2>> %OUTPUT%\err.txt
+    %TEST% %* %INPUT%\%%a >> %OUTPUT%\out.txt 2>> %OUTPUT%\err.txt
 )
 
+rem the module cache: a miss, a hit, an imported module that changed (which
+rem invalidates the modules importing it), and a main module that changed
+mkdir %CACHE%\src
+copy %INPUT%\import.root %CACHE%\src > nul
+copy %INPUT%\import_lib.root %CACHE%\src > nul
+copy %INPUT%\import_base.root %CACHE%\src > nul
+for %%a in (miss hit import_changed main_changed) do (
+    if %%a == import_changed copy /y %INPUT%\import_base_v2.root %CACHE%\src\import_base.root > nul
+    if %%a == main_changed copy /y %INPUT%\import_v2.root %CACHE%\src\import.root > nul
+    echo [cache %%a] >> %OUTPUT%\out.txt
+    echo [cache %%a] >> %OUTPUT%\err.txt
+    %TEST% -stats -cache %CACHE% %CACHE%\src\import.root >> %OUTPUT%\out.txt 2>> %OUTPUT%\err.txt
+)
+
+rem a line of a thousand terms, deeper than serializing the AST recursively
+rem could go, and no temporary file left behind by any of the above
+for %%a in (miss hit) do (
+    echo [cache deep_line.root %%a] >> %OUTPUT%\out.txt
+    echo [cache deep_line.root %%a] >> %OUTPUT%\err.txt
+    %TEST% -stats -cache %CACHE% %INPUT%\deep_line.root >> %OUTPUT%\out.txt 2>> %OUTPUT%\err.txt
+)
+if exist %CACHE%\*.tmp echo temporary file left in the cache >> %OUTPUT%\err.txt
+
+rem the counters of the tree engine, see Metrics
+for %%a in (fib.root simple_func.root nest_exp.root) do (
+    echo [stats %%a] >> %OUTPUT%\out.txt
+    echo [stats %%a] >> %OUTPUT%\err.txt
+    %TEST% -stats %INPUT%\%%a >> %OUTPUT%\out.txt 2>> %OUTPUT%\err.txt
+)
+
+rem Program, as an embedding uses it: inputs bound, an unknown input, an
+rem input left unbound, and threads evaluating one Program at once
+echo [embed area.root r=2] >> %OUTPUT%\out.txt
+echo [embed area.root r=2] >> %OUTPUT%\err.txt
+%TEST% -input r=2 %INPUT%\area.root >> %OUTPUT%\out.txt 2>> %OUTPUT%\err.txt
+echo [embed area.root s=2] >> %OUTPUT%\out.txt
+echo [embed area.root s=2] >> %OUTPUT%\err.txt
+%TEST% -input s=2 %INPUT%\area.root >> %OUTPUT%\out.txt 2>> %OUTPUT%\err.txt
+echo [embed area.root threads 2] >> %OUTPUT%\out.txt
+echo [embed area.root threads 2] >> %OUTPUT%\err.txt
+%TEST% -threads 2 %INPUT%\area.root >> %OUTPUT%\out.txt 2>> %OUTPUT%\err.txt
+echo [embed fib.root threads 4] >> %OUTPUT%\out.txt
+echo [embed fib.root threads 4] >> %OUTPUT%\err.txt
+%TEST% -threads 4 %INPUT%\fib.root >> %OUTPUT%\out.txt 2>> %OUTPUT%\err.txt
+echo [embed fib_e6.root threads 2] >> %OUTPUT%\out.txt
+echo [embed fib_e6.root threads 2] >> %OUTPUT%\err.txt
+%TEST% -threads 2 %INPUT%\fib_e6.root >> %OUTPUT%\out.txt 2>> %OUTPUT%\err.txt
+
 windiff %OUTPUT_EXPECTED% %OUTPUT%
 
 popd